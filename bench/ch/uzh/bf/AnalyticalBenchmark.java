@@ -0,0 +1,87 @@
+package ch.uzh.bf;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.impl.SparseDoubleMatrix2D;
+
+import ch.uzh.bf.Main.DynamicConfig;
+
+// Eigenvector centrality variant: sparse Gauss-Seidel solver against the dense Colt inverse
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalyticalBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Sparse {
+		@Param({"1000", "100000", "1000000"})
+		public int nodes;
+
+		@Param({"1.5", "3"})
+		public double degree;
+
+		DynamicConfig cfg;
+		GraphSnapshot snap;
+
+		@Setup
+		public void setup() {
+			cfg = BenchGraph.config(1);
+			snap = BenchGraph.snapshot(nodes, degree, 42);
+		}
+	}
+
+	@Benchmark
+	public double[] sparse(Sparse s) {
+		SparseSolver solver = new SparseSolver(s.snap.getOffsets(), s.snap.getTargets(), s.snap.getWeights(), s.cfg.solverTolerance, s.cfg.solverMaxIterations);
+		return new InfluenceIndex(s.cfg).centrality(s.snap, solver);
+	}
+
+	// The dense inverse is O(n^3) in time and O(n^2) in memory
+	@State(Scope.Benchmark)
+	public static class Dense {
+		@Param({"250", "1000"})
+		public int nodes;
+
+		@Param({"1.5", "3"})
+		public double degree;
+
+		DynamicConfig cfg;
+		DoubleMatrix2D adj;
+		DoubleMatrix1D val;
+
+		@Setup
+		public void setup() {
+			cfg = BenchGraph.config(1);
+			GraphSnapshot snap = BenchGraph.snapshot(nodes, degree, 42);
+			adj = new SparseDoubleMatrix2D(nodes, nodes);
+			for (int v = 0; v < nodes; v++) {
+				for (int r = snap.getOffsets().get(v); r < snap.getOffsets().get(v + 1); r++) {
+					adj.setQuick(v, snap.getTargets().get(r), snap.getWeights().get(r));
+				}
+			}
+			val = new DenseDoubleMatrix1D(snap.copyValues());
+		}
+	}
+
+	@Benchmark
+	public DoubleMatrix1D dense(Dense s) {
+		return new InfluenceIndex(s.cfg).centrality(s.adj, s.val);
+	}
+}
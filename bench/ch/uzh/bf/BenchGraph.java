@@ -0,0 +1,82 @@
+package ch.uzh.bf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import ch.uzh.bf.Main.DynamicConfig;
+
+public final class BenchGraph {
+
+	/*
+	 * Benchmark networks from NetworkGenerator: bowtie blocks with an SCC core of 1%
+	 * of the nodes and few extra owners inside it, so the path enumeration of the
+	 * SCC stays feasible, and a mean degree of the given value. The same seed gives
+	 * the same network. The number of simple paths, hence the cost of the full
+	 * enumeration, still grows quickly with size and degree
+	 */
+	private static final PrintStream console = System.out;
+
+	private BenchGraph() {}
+
+	public static EdgeListLoader generate(int nodes, double degree, long seed) {
+		NetworkGenerator generator = new NetworkGenerator(nodes, seed);
+		generator.setProportions(0.2, 0.01, 0.5, 0.15);
+		generator.setSccDegree(0.3);
+		generator.setDegree(degree, 2.1, 2.0);
+		EdgeListLoader loader = new EdgeListLoader(',', false);
+		generator.generate(loader);
+		return loader;
+	}
+
+	public static GraphSnapshot snapshot(int nodes, double degree, long seed) {
+		return generate(nodes, degree, seed).toSnapshot();
+	}
+
+	// *** Neo4j
+	// Start an embedded database in a fresh temporary directory and insert the
+	// network through EdgeListLoader, as for a real edge list
+	public static MyNeo4j startNeo4j(EdgeListLoader loader, DynamicConfig cfg) throws IOException {
+		File dir = File.createTempFile("influenceindex-bench", "");
+		dir.delete();
+		cfg.dbPath = dir.getPath();
+		MyNeo4j neo = new MyNeo4j(cfg);
+		neo.startup();
+		loader.toNeo4j(cfg.batchSize);
+		return neo;
+	}
+
+	public static void stopNeo4j(MyNeo4j neo, DynamicConfig cfg) {
+		neo.shutdown();
+		delete(new File(cfg.dbPath));
+	}
+
+	private static void delete(File file) {
+		if (file.isDirectory()) {
+			for (File child : file.listFiles()) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	// *** Console
+	// The code under test reports to System.out, which is muted while measuring
+	public static void quiet() {
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {}
+			public void write(byte[] b, int off, int len) {}
+		}));
+	}
+
+	public static void loud() {
+		System.setOut(console);
+	}
+
+	public static DynamicConfig config(int threads) {
+		DynamicConfig cfg = new Main().new DynamicConfig();
+		cfg.threads = threads;
+		return cfg;
+	}
+}
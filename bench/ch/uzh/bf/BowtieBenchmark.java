@@ -0,0 +1,111 @@
+package ch.uzh.bf;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Neo4j Version 2.2.5
+import org.neo4j.graphdb.Transaction;
+
+import ch.uzh.bf.Main.DynamicConfig;
+
+// Full bowtie analysis: SnapshotBowtie in memory, and DetectBowtie on the Neo4j store
+// including the write back of the BOWTIE property
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BowtieBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class InMemory {
+		@Param({"10000", "1000000"})
+		public int nodes;
+
+		@Param({"1.5", "3"})
+		public double degree;
+
+		@Param({"1", "4"})
+		public int threads;
+
+		GraphSnapshot snap;
+
+		@Setup
+		public void setup() {
+			BenchGraph.quiet();
+			snap = BenchGraph.snapshot(nodes, degree, 42);
+		}
+
+		@TearDown
+		public void tearDown() {
+			BenchGraph.loud();
+		}
+	}
+
+	@Benchmark
+	public byte[] inMemory(InMemory s) {
+		SnapshotBowtie bt = new SnapshotBowtie(s.snap, s.threads);
+		bt.run();
+		return bt.getClasses();
+	}
+
+	@State(Scope.Benchmark)
+	public static class OnNeo4j {
+		@Param({"10000", "100000"})
+		public int nodes;
+
+		@Param({"1.5"})
+		public double degree;
+
+		@Param({"1", "4"})
+		public int threads;
+
+		DynamicConfig cfg;
+		MyNeo4j neo;
+
+		@Setup
+		public void setup() throws Exception {
+			BenchGraph.quiet();
+			cfg = BenchGraph.config(threads);
+			neo = BenchGraph.startNeo4j(BenchGraph.generate(nodes, degree, 42), cfg);
+		}
+
+		@TearDown
+		public void tearDown() {
+			BenchGraph.stopNeo4j(neo, cfg);
+			BenchGraph.loud();
+		}
+	}
+
+	@Benchmark
+	public DetectBowtie onNeo4j(OnNeo4j s) {
+		Transaction tx = MyNeo4j.gdbs.beginTx();
+		try {
+			DetectBowtie bt = new DetectBowtie(s.threads);
+			ArrayList<Integer> lscc = bt.sccAnalysis();
+			if (lscc.size() > 0) {
+				BatchWriter writer = new BatchWriter(s.cfg.batchSize);
+				bt.bowTie(lscc, writer);
+				writer.close();
+			}
+			tx.success();
+			return bt;
+		}
+		finally {
+			tx.close();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package ch.uzh.bf;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Neo4j Version 2.2.5
+import org.neo4j.graphdb.Transaction;
+
+import ch.uzh.bf.Main.DynamicConfig;
+
+// Strongly connected components: ParallelScc on a snapshot, and DetectBowtie on the
+// Neo4j store (iterative Tarjan for 1 thread, ParallelScc otherwise), which includes
+// reading the relationships from the store
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SccBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class InMemory {
+		@Param({"10000", "1000000"})
+		public int nodes;
+
+		@Param({"1.5", "3"})
+		public double degree;
+
+		@Param({"1", "4"})
+		public int threads;
+
+		GraphSnapshot snap;
+		boolean[] exists;
+
+		@Setup
+		public void setup() {
+			snap = BenchGraph.snapshot(nodes, degree, 42);
+			snap.getInOffsets();
+			exists = new boolean[nodes];
+			Arrays.fill(exists, true);
+		}
+	}
+
+	@Benchmark
+	public int[] inMemory(InMemory s) {
+		ParallelScc scc = new ParallelScc(s.snap.getOffsets(), s.snap.getTargets(), s.snap.getInOffsets(), s.snap.getSources(), s.exists, s.threads);
+		return scc.run();
+	}
+
+	@State(Scope.Benchmark)
+	public static class OnNeo4j {
+		@Param({"10000", "100000"})
+		public int nodes;
+
+		@Param({"1.5"})
+		public double degree;
+
+		@Param({"1", "4"})
+		public int threads;
+
+		DynamicConfig cfg;
+		MyNeo4j neo;
+
+		@Setup
+		public void setup() throws Exception {
+			BenchGraph.quiet();
+			cfg = BenchGraph.config(threads);
+			neo = BenchGraph.startNeo4j(BenchGraph.generate(nodes, degree, 42), cfg);
+		}
+
+		@TearDown
+		public void tearDown() {
+			BenchGraph.stopNeo4j(neo, cfg);
+			BenchGraph.loud();
+		}
+	}
+
+	@Benchmark
+	public int[] onNeo4j(OnNeo4j s) {
+		Transaction tx = MyNeo4j.gdbs.beginTx();
+		try {
+			DetectBowtie bt = new DetectBowtie(s.threads);
+			bt.sccAnalysis();
+			tx.success();
+			return bt.getComponentIds();
+		}
+		finally {
+			tx.close();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package ch.uzh.bf;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Neo4j Version 2.2.5
+import org.neo4j.graphdb.Transaction;
+
+import ch.uzh.bf.Main.DynamicConfig;
+
+// Influence Index traversal: in-memory (SnapshotInfluenceIndex) and on the Neo4j store (InfluenceIndex)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraversalBenchmark {
+
+	// In-memory, mode is one of
+	//   condensed  SCC condensation
+	//   pruned     full enumeration with epsilon 1e-4
+	//   full       exact full enumeration, exponential: small graphs only
+	@State(Scope.Benchmark)
+	public static class InMemory {
+		@Param({"1000", "10000"})
+		public int nodes;
+
+		@Param({"1.5", "3"})
+		public double degree;
+
+		@Param({"condensed", "pruned"})
+		public String mode;
+
+		@Param({"1"})
+		public int threads;
+
+		DynamicConfig cfg;
+		GraphSnapshot snap;
+		int[] component;
+		int numComponents;
+
+		@Setup
+		public void setup() {
+			BenchGraph.quiet();
+			cfg = BenchGraph.config(threads);
+			cfg.condensation = mode.equals("condensed");
+			cfg.epsilon = mode.equals("pruned") ? 1e-4 : 0.0;
+			snap = BenchGraph.snapshot(nodes, degree, 42);
+			SnapshotBowtie bt = new SnapshotBowtie(snap, 1);
+			bt.run();
+			component = bt.getComponentIds();
+			numComponents = bt.getNumComponents();
+		}
+
+		@TearDown
+		public void tearDown() {
+			BenchGraph.loud();
+		}
+	}
+
+	@Benchmark
+	public double[] inMemory(InMemory s) {
+		SnapshotInfluenceIndex ii = new SnapshotInfluenceIndex(s.cfg, s.snap);
+		ii.setComponents(s.component, s.numComponents);
+		ii.wrapper();
+		return ii.getInfluenceIndex();
+	}
+
+	// Reference implementation on the Neo4j store, including the write back of II_VAL
+	@State(Scope.Benchmark)
+	public static class OnNeo4j {
+		@Param({"1000"})
+		public int nodes;
+
+		@Param({"1.5"})
+		public double degree;
+
+		DynamicConfig cfg;
+		MyNeo4j neo;
+
+		@Setup
+		public void setup() throws Exception {
+			BenchGraph.quiet();
+			cfg = BenchGraph.config(1);
+			neo = BenchGraph.startNeo4j(BenchGraph.generate(nodes, degree, 42), cfg);
+		}
+
+		@TearDown
+		public void tearDown() {
+			BenchGraph.stopNeo4j(neo, cfg);
+			BenchGraph.loud();
+		}
+	}
+
+	@Benchmark
+	public InfluenceIndex onNeo4j(OnNeo4j s) {
+		Transaction tx = MyNeo4j.gdbs.beginTx();
+		try {
+			InfluenceIndex ii = new InfluenceIndex(s.cfg);
+			ii.wrapper();
+			tx.success();
+			return ii;
+		}
+		finally {
+			tx.close();
+		}
+	}
+}
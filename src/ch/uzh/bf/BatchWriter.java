@@ -0,0 +1,162 @@
+package ch.uzh.bf;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Neo4j Version 2.2.5
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+public class BatchWriter {
+
+	/*
+	 * Writes node properties in chunks of batchSize updates, each chunk in its own
+	 * transaction. Chunks are committed by a background thread, so the caller can
+	 * keep computing while the previous chunk commits. At most queueSize chunks are
+	 * waiting, which bounds the memory used.
+	 * Neo4j 2.2 transactions are read committed, so the caller's own (read)
+	 * transaction sees the updates once close() has returned
+	 */
+	private static final int queueSize = 4;
+
+	private int batchSize;
+	private BlockingQueue<Batch> queue;
+	private Thread committer;
+	private volatile RuntimeException failure;
+
+	private Batch current;
+	private long updates;
+	private long batches;
+	private long start;
+
+	public BatchWriter(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1, found " + batchSize);
+		}
+		this.batchSize = batchSize;
+		queue = new ArrayBlockingQueue<Batch>(queueSize);
+		current = new Batch(batchSize);
+		start = System.currentTimeMillis();
+		committer = new Thread(new Runnable() {
+			public void run() {
+				commitLoop();
+			}
+		}, "BatchWriter");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	// Queue a property update, a null value removes the property
+	public void setProperty(long nodeId, String key, Object value) {
+		current.nodeIds[current.size] = nodeId;
+		current.keys[current.size] = key;
+		current.values[current.size] = value;
+		current.size++;
+		updates++;
+		if (current.size == batchSize) {
+			put(current);
+			current = new Batch(batchSize);
+		}
+	}
+
+	// Queue the removal of a property, if the node has it
+	public void removeProperty(long nodeId, String key) {
+		setProperty(nodeId, key, null);
+	}
+
+	// Commit everything still queued and stop the background thread
+	public void close() {
+		if (current.size > 0) {
+			put(current);
+		}
+		current = null;
+		put(new Batch(0));
+		try {
+			committer.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while committing", e);
+		}
+		checkFailure();
+		long time = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("Committed " + updates + " updates in " + batches + " batches (" + (updates * 1000 / time) + " updates/s)");
+	}
+
+	private void put(Batch batch) {
+		checkFailure();
+		try {
+			queue.put(batch);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while queueing batch", e);
+		}
+	}
+
+	private void checkFailure() {
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	// Background thread: one transaction per batch, an empty batch ends the loop
+	private void commitLoop() {
+		try {
+			while (true) {
+				Batch batch = queue.take();
+				if (batch.size == 0) {
+					return;
+				}
+				Transaction tx = MyNeo4j.gdbs.beginTx();
+				try {
+					for (int i = 0; i < batch.size; i++) {
+						Node node = MyNeo4j.gdbs.getNodeById(batch.nodeIds[i]);
+						if (batch.values[i] != null) {
+							node.setProperty(batch.keys[i], batch.values[i]);
+						}
+						else {
+							node.removeProperty(batch.keys[i]);
+						}
+					}
+					tx.success();
+				}
+				finally {
+					tx.close();
+				}
+				batches++;
+			}
+		}
+		catch (InterruptedException e) {
+			failure = new IllegalStateException("Committer interrupted", e);
+		}
+		catch (RuntimeException e) {
+			failure = e;
+			// Keep draining so the producer does not block forever
+			while (true) {
+				try {
+					if (queue.take().size == 0) {
+						return;
+					}
+				}
+				catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	// Chunk of property updates
+	private static final class Batch {
+		final long[] nodeIds;
+		final String[] keys;
+		final Object[] values;
+		int size;
+
+		Batch(int capacity) {
+			nodeIds = new long[capacity];
+			keys = new String[capacity];
+			values = new Object[capacity];
+		}
+	}
+}
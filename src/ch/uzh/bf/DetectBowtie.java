@@ -1,62 +1,132 @@
 package ch.uzh.bf;
 
+import java.io.PrintStream;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Queue;
-import java.util.Stack;
 
 // Neo4j Version 2.2.5
 import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.Path;
-import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.traversal.Evaluators;
-import org.neo4j.graphdb.traversal.Traverser;
-import org.neo4j.graphdb.traversal.TraversalDescription;
-import org.neo4j.graphdb.traversal.Uniqueness;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.tooling.GlobalGraphOperations;
 
 public class DetectBowtie {
 
 	// SCC code taken from:
 	// http://algs4.cs.princeton.edu/42directed/TarjanSCC.java.html
+	// made iterative, on primitive arrays indexed by Neo4j node id
 	private boolean[] marked;        // marked[v] = has v been visited?
 	private int[] id;                // id[v] = id of strong component containing v
 	private int[] low;               // low[v] = low number of v
 	private int pre;                 // preorder number counter
 	private int count;               // number of strongly-connected components
-	private Stack<Integer> stack;
+	private int[] stack;             // Tarjan stack of nodes
+	private int top;                 // number of nodes on Tarjan stack
+	private long expanded;           // relationships expanded by the Tarjan DFS
+
+	// Explicit DFS call stack
+	private int[] callNode;          // callNode[d] = node at depth d
+	private int[] callCursor;        // callCursor[d] = next relationship of callNode[d]
+	private int[] callMin;           // callMin[d] = min low number seen from callNode[d]
+
+	// Direct downstream neighbours in CSR layout
+	private int[] offsets;           // offsets[v]..offsets[v+1]-1 = relationships of v
+	private int[] targets;           // targets[r] = id of end node of relationship r
+	private int[] inOffsets;         // inOffsets[v]..inOffsets[v+1]-1 = upstream relationships of v
+	private int[] sources;           // sources[r] = id of start node of upstream relationship r
+
+	private byte[] classes;          // classes[v] = StaticConfig.BowTie ordinal written for v
 
 	private int size;
 	private int maxId;
+	private int threads;
+	private boolean printNodes;      // list the nodes of each component on the console
 
-	public DetectBowtie() {
+	// With threads > 1 SCCs are found by the parallel algorithm in ParallelScc
+	public DetectBowtie(int threads) {
+		this(threads, true);
+	}
+
+	public DetectBowtie(int threads, boolean printNodes) {
+		this.threads = threads;
+		this.printNodes = printNodes;
 		System.out.println("\n### Detect bowtie");
-		size = 0;
-		for (@SuppressWarnings("unused") Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
-			size++;
+		long start = System.nanoTime();
+		// Node ids need not be dense, so size everything by the max id
+		maxId = -1;
+		for (Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
+			maxId = Math.max(maxId, (int) node.getId());
+		}
+		size = maxId + 1;
+		marked = new boolean[size];
+		id = new int[size];
+		low = new int[size];
+		stack = new int[size];
+		callNode = new int[size];
+		callCursor = new int[size];
+		callMin = new int[size];
+
+		// Direct neighbours only
+		offsets = new int[size + 1];
+		for (Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
+			offsets[(int) node.getId() + 1] = node.getDegree(StaticConfig.relType, StaticConfig.outDir);
+		}
+		for (int v = 0; v < size; v++) {
+			offsets[v + 1] += offsets[v];
+		}
+		targets = new int[offsets[size]];
+		for (Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
+			int r = offsets[(int) node.getId()];
+			for (Relationship rel : node.getRelationships(StaticConfig.relType, StaticConfig.outDir)) {
+				targets[r++] = (int) rel.getEndNode().getId();
+			}
+		}
+
+		// Direct upstream neighbours
+		inOffsets = new int[size + 1];
+		for (int r = 0; r < targets.length; r++) {
+			inOffsets[targets[r] + 1]++;
+		}
+		for (int v = 0; v < size; v++) {
+			inOffsets[v + 1] += inOffsets[v];
+		}
+		int[] fill = Arrays.copyOf(inOffsets, size);
+		sources = new int[targets.length];
+		for (int v = 0; v < size; v++) {
+			for (int r = offsets[v]; r < offsets[v + 1]; r++) {
+				sources[fill[targets[r]]++] = v;
+			}
 		}
-		maxId = size - 1;
-		marked = new boolean[maxId + 1];
-		stack = new Stack<Integer>();
-		id = new int[maxId + 1]; 
-		low = new int[maxId + 1];
+		Metrics.time("bowtie.load", start);
 	}
 
 	// Find all strongly connected components (SCC) and the largest  connected component(LCC)
 	public ArrayList<Integer> sccAnalysis() {
 		System.out.println("# Bowtie analysis: SCC and LCC");
+		long start = System.nanoTime();
 		// Analyze
-		for (Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
-			try {
-				if (!marked[(int) node.getId()])
-					dfs(node);
+		if (threads > 1) {
+			boolean[] exists = new boolean[size];
+			for (Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
+				exists[(int) node.getId()] = true;
 			}
-			catch (Exception e) {
-				System.err.println(e);
+			ParallelScc scc = new ParallelScc(IntBuffer.wrap(offsets), IntBuffer.wrap(targets), IntBuffer.wrap(inOffsets), IntBuffer.wrap(sources), exists, threads);
+			id = scc.run();
+			count = scc.getCount();
+		}
+		else {
+			for (Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
+				if (!marked[(int) node.getId()])
+					dfs((int) node.getId());
 			}
+			Metrics.count("bowtie.sccEdges", expanded);
 		}
+		Metrics.time("bowtie.scc", start);
+		Metrics.count("bowtie.components", count);
 
 		// Output
 		int M = count();
@@ -103,195 +173,116 @@ public class DetectBowtie {
 					lscc.add(v);
 				}
 			}
-			// SCCs with no OUT
-			// Only once per SCC
-			if (size > 1) {;
-			int id = components[i].element();
-			Node n = MyNeo4j.gdbs.getNodeById(id);
-			TraversalDescription td = MyNeo4j.gdbs.traversalDescription().breadthFirst()
-					.relationships(StaticConfig.relType, StaticConfig.outDir).evaluator(Evaluators.excludeStartPosition());
-			Traverser friendsTraverser = td.traverse(n);
-			// See if there are any nodes downstream which are not in the SCC, i.e., OUT-nodes
-			for (Path p : friendsTraverser) {
-				if (!components[i].contains((int) p.endNode().getId())) {
-					break;
-				}
-			}
-			}
+			// IN and OUT of every SCC, not just the largest, are found on the
+			// condensation by MultiBowtie
 		}
 		System.out.println(mycount + " component(s) (with more than one node)");
 		System.out.println("Comp size histo ({size, frequ}): " + " " + histo.toString());
 
 		System.out.println("#Bowtie analysis: SCC nodes in LCC " + lscc.size());
-		System.out.print("\t");
-		for (int id : lscc) {
-			System.out.print(MyNeo4j.gdbs.getNodeById(id).getProperty(StaticConfig.nodeName) + "; ");
+		if (printNodes) {
+			PrintStream out = ResultExport.console();
+			out.print("\t");
+			for (int id : lscc) {
+				out.print(MyNeo4j.gdbs.getNodeById(id).getProperty(StaticConfig.nodeName) + "; ");
+			}
+			out.flush();
 		}
-		System.out.print("");
 		return lscc;
 	}
 
 	// Find other bowtie components: IN, OUT, TT
-	public void bowTie(ArrayList<Integer> lscc, Transaction tx) {
-		HashSet<Integer> in = new HashSet<Integer>();
-		HashSet<Integer> out = new HashSet<Integer>();
-		HashSet<Integer> tt = new HashSet<Integer>();
-		HashSet<Integer> occ = new HashSet<Integer>();
-
-		// All
-		for (Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
-			int test = (int) node.getId();
-			occ.add(test);
+	// All sets are bitsets indexed by node id, IN and OUT are found by backward and
+	// forward breadth first search (BFS) from the largest SCC on the neighbour arrays
+	public void bowTie(ArrayList<Integer> lscc, BatchWriter writer) {
+		long start = System.nanoTime();
+		BitSet scc = new BitSet(size);
+		for (int v : lscc) {
+			scc.set(v);
 		}
-		HashSet<Integer> all = new HashSet<Integer>(occ);
-		for (int id : lscc) {
-			occ.remove(id);
+		BitSet all = new BitSet(size);
+		for (Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
+			all.set((int) node.getId());
 		}
 
+		int[] queue = new int[size];
+		IntBuffer offsets = IntBuffer.wrap(this.offsets);
+		IntBuffer targets = IntBuffer.wrap(this.targets);
+		IntBuffer inOffsets = IntBuffer.wrap(this.inOffsets);
+		IntBuffer sources = IntBuffer.wrap(this.sources);
+
 		// OUT
 		System.out.println("# Bowtie analysis: OUT");
-		Node seed = MyNeo4j.gdbs.getNodeById(lscc.get(0));
-		TraversalDescription td = MyNeo4j.gdbs.traversalDescription().breadthFirst()
-				.relationships(StaticConfig.relType, StaticConfig.outDir)
-				.evaluator( Evaluators.excludeStartPosition() );
-		Traverser traverser = td.traverse(seed);
-
-		for (Path outPath : traverser) {
-			int test = (int) outPath.endNode().getId();
-			out.add(test);
-		}
-
-		for (int s : lscc) {
-			out.remove(s);
-		}
-
-		for (int o : out) {
-			occ.remove(o);
-		}
-		System.out.println("OUT nodes " + out.size());
+		BitSet out = bfs(scc, offsets, targets, null, null, queue);
+		out.andNot(scc);
+		System.out.println("OUT nodes " + out.cardinality());
 		printNodes(out);
 
 		// IN
 		System.out.println("# Bowtie analysis: IN");
-		td = MyNeo4j.gdbs.traversalDescription().breadthFirst()
-				.relationships(StaticConfig.relType, StaticConfig.inDir)
-				.evaluator( Evaluators.excludeStartPosition() );
-		traverser = td.traverse(seed);
-
-		for (Path inPath : traverser) {
-			int test = (int) inPath.endNode().getId();
-			if (!lscc.contains(test)) {
-				in.add(test);
-				occ.remove(test);
-			}
-		}
-		System.out.println("IN nodes " + in.size());
+		BitSet in = bfs(scc, inOffsets, sources, null, null, queue);
+		in.andNot(scc);
+		System.out.println("IN nodes " + in.cardinality());
 		printNodes(in);
 
-		// LCC
-		td = MyNeo4j.gdbs.traversalDescription().breadthFirst()
-				.relationships(StaticConfig.relType, StaticConfig.bothDir).uniqueness(Uniqueness.NODE_GLOBAL);
-		Traverser nodeTraverser = td.traverse(seed);
-		for (Path myLinks : nodeTraverser) {
-			int id1 = (int) myLinks.endNode().getId();
-			int id2 = (int) myLinks.startNode().getId();
-			tt.add(id1);
-			tt.add(id2);
-		}
+		// LCC: weakly connected component of the SCC
+		BitSet lcc = bfs(scc, offsets, targets, inOffsets, sources, queue);
 
-		// TT
+		// TT and OCC
 		System.out.println("# Bowtie analysis: TT and OCC");
-		for (int test : all) {
-			if (lscc.contains(test) || in.contains(test) || out.contains(test)) {
-				tt.remove(test);
-			}
-		}
-
-		Integer[] del = occ.toArray(new Integer[occ.size()]);
-		for (int i : del) {
-			if (tt.contains(i)) {
-				occ.remove(i);
-			}
-		}
-
-		System.out.println("TT nodes " + tt.size());
+		BitSet tt = (BitSet) lcc.clone();
+		tt.andNot(scc);
+		tt.andNot(in);
+		tt.andNot(out);
+		BitSet occ = (BitSet) all.clone();
+		occ.andNot(lcc);
+
+		System.out.println("TT nodes " + tt.cardinality());
 		printNodes(tt);
 
 		System.out.println("# Bowtie analysis: stats");
 
-		System.out.println("TT nodes " + tt.size());
-		int lcc = tt.size() + in.size() + lscc.size() + out.size();
-		System.out.println("LCC nodes " + lcc);
-		System.out.println("OCC nodes " + occ.size());
-		System.out.println("All nodes " + (occ.size()+lcc));
-
-		// Set properties
-		for (Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
-			int myId = (int) node.getId();
-			try {
-				if (in.contains(myId)) {
-					if (node.hasProperty(StaticConfig.nodeBT))
-						throw new Exception(myId + " already has prop " + node.getProperty(StaticConfig.nodeBT));
-					node.setProperty(StaticConfig.nodeBT, StaticConfig.BowTie.IN.toString());
-				}
-			} catch (Exception e) {
-				System.err.println(e.getMessage());
-			}
-			try {
-				if (lscc.contains(myId)) {
-					if (node.hasProperty(StaticConfig.nodeBT))
-						throw new Exception(myId + " already has prop " + node.getProperty(StaticConfig.nodeBT));
-					node.setProperty(StaticConfig.nodeBT, StaticConfig.BowTie.SCC.toString());
-				}
-			} catch (Exception e) {
-				System.err.println(e.getMessage());
-			}
-			try {
-				if (out.contains(myId)) {
-					if (node.hasProperty(StaticConfig.nodeBT))
-						throw new Exception(myId + " already has prop " + node.getProperty(StaticConfig.nodeBT));
-					node.setProperty(StaticConfig.nodeBT, StaticConfig.BowTie.OUT.toString());
-				}
-			} catch (Exception e) {
-				System.err.println(e.getMessage());
-			}
-			try {
-				if (tt.contains(myId)) {
-					if (node.hasProperty(StaticConfig.nodeBT))
-						throw new Exception(myId + " already has prop " + node.getProperty(StaticConfig.nodeBT));
-					node.setProperty(StaticConfig.nodeBT, StaticConfig.BowTie.TT.toString());
-				}
-			} catch (Exception e) {
-				System.err.println(e.getMessage());
-			}
-			try {
-				if (occ.contains(myId)) {
-					if (node.hasProperty(StaticConfig.nodeBT))
-						throw new Exception(myId + " already has prop " + node.getProperty(StaticConfig.nodeBT));
-					node.setProperty(StaticConfig.nodeBT, StaticConfig.BowTie.OCC.toString());
-				}
-			} catch (Exception e) {
-				System.err.println(e.getMessage());
-			}
-		}
+		System.out.println("TT nodes " + tt.cardinality());
+		System.out.println("LCC nodes " + lcc.cardinality());
+		System.out.println("OCC nodes " + occ.cardinality());
+		System.out.println("All nodes " + (occ.cardinality()+lcc.cardinality()));
 
+		// Set properties and sum up values in one pass
 		double valIn = 0.0;
 		double valScc = 0.0;
 		double valOut = 0.0;
 		double valTt = 0.0;
+		String btIn = StaticConfig.BowTie.IN.toString();
+		String btScc = StaticConfig.BowTie.SCC.toString();
+		String btOut = StaticConfig.BowTie.OUT.toString();
+		String btTt = StaticConfig.BowTie.TT.toString();
+		String btOcc = StaticConfig.BowTie.OCC.toString();
+		classes = new byte[size];
 		for (Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
-			String bt = (String) node.getProperty(StaticConfig.nodeBT);
+			int myId = (int) node.getId();
 			double val = (double) node.getProperty(StaticConfig.nodeValue);
-			if (bt.equals(StaticConfig.BowTie.IN.toString())) {
+			if (in.get(myId)) {
+				writer.setProperty(node.getId(), StaticConfig.nodeBT, btIn);
+				classes[myId] = (byte) StaticConfig.BowTie.IN.ordinal();
 				valIn += val;
-			} else 	if (bt.equals(StaticConfig.BowTie.SCC.toString())) {
+			} else if (scc.get(myId)) {
+				writer.setProperty(node.getId(), StaticConfig.nodeBT, btScc);
+				classes[myId] = (byte) StaticConfig.BowTie.SCC.ordinal();
 				valScc += val;
-			} else 	if (bt.equals(StaticConfig.BowTie.OUT.toString())) {
+			} else if (out.get(myId)) {
+				writer.setProperty(node.getId(), StaticConfig.nodeBT, btOut);
+				classes[myId] = (byte) StaticConfig.BowTie.OUT.ordinal();
 				valOut += val;
-			} else 	if (bt.equals(StaticConfig.BowTie.TT.toString())) {
+			} else if (tt.get(myId)) {
+				writer.setProperty(node.getId(), StaticConfig.nodeBT, btTt);
+				classes[myId] = (byte) StaticConfig.BowTie.TT.ordinal();
 				valTt += val;
+			} else {
+				writer.setProperty(node.getId(), StaticConfig.nodeBT, btOcc);
+				classes[myId] = (byte) StaticConfig.BowTie.OCC.ordinal();
 			}
 		}
+		Metrics.time("bowtie.classes", start);
 		System.out.println("# Bowtie analysis: value");
 		System.out.println("IN val " + valIn);
 		System.out.println("SCC val " + valScc);
@@ -300,61 +291,127 @@ public class DetectBowtie {
 		System.out.println("Total val " + (valIn+valScc+valOut+valTt));
 	}
 
+	// BFS from all seeds along the relationships of one (or, if the second buffers
+	// are given, both) CSR layouts. Returns the visited nodes, including the seeds
+	static BitSet bfs(BitSet seeds, IntBuffer offsets, IntBuffer targets, IntBuffer offsets2, IntBuffer targets2, int[] queue) {
+		BitSet visited = (BitSet) seeds.clone();
+		long edges = 0;
+		int head = 0;
+		int tail = 0;
+		for (int v = seeds.nextSetBit(0); v >= 0; v = seeds.nextSetBit(v + 1)) {
+			queue[tail++] = v;
+		}
+		while (head < tail) {
+			int v = queue[head++];
+			edges += offsets.get(v + 1) - offsets.get(v) + (offsets2 != null ? offsets2.get(v + 1) - offsets2.get(v) : 0);
+			for (int r = offsets.get(v); r < offsets.get(v + 1); r++) {
+				int w = targets.get(r);
+				if (!visited.get(w)) {
+					visited.set(w);
+					queue[tail++] = w;
+				}
+			}
+			if (offsets2 != null) {
+				for (int r = offsets2.get(v); r < offsets2.get(v + 1); r++) {
+					int w = targets2.get(r);
+					if (!visited.get(w)) {
+						visited.set(w);
+						queue[tail++] = w;
+					}
+				}
+			}
+		}
+		Metrics.count("bowtie.bfsEdges", edges);
+		return visited;
+	}
+
 	// *** SCC methods
 	
 	// Depth first search
-	private void dfs(Node n) {
-		// Depth first search
-		int v = (int) n.getId();
-		marked[v] = true;
-		low[v] = pre++;
-		int min = low[v];
-		stack.push(v);
-
-		// Traverse one step downstream
-		TraversalDescription td = MyNeo4j.gdbs.traversalDescription().breadthFirst()
-				.relationships(StaticConfig.relType, StaticConfig.outDir).evaluator(Evaluators.excludeStartPosition());
-		Traverser friendsTraverser = td.traverse(n);
-
-		// Collect all adjacent nodes
-		Iterable<Node> adj = new ArrayList<Node>();
-		for (Path p : friendsTraverser) {
-			if (p.length() == 1) {
-				Node mynode = p.endNode();
-				((ArrayList<Node>)adj).add(mynode);
+	// Iterative version of the recursive Tarjan DFS: the recursion is replaced by
+	// the explicit call stack callNode/callCursor/callMin
+	private void dfs(int s) {
+		int depth = 0;
+		enter(s, depth);
+		while (depth >= 0) {
+			int v = callNode[depth];
+			// Loop over direct downstream neighbours
+			if (callCursor[depth] < offsets[v + 1]) {
+				int w = targets[callCursor[depth]++];
+				expanded++;
+				if (!marked[w]) {
+					enter(w, ++depth);
+				}
+				else if (low[w] < callMin[depth]) {
+					callMin[depth] = low[w];
+				}
+				continue;
 			}
-		}
 
-		// Loop
-		for (Node node : adj) {
-			int w = (int) node.getId();
-			if (!marked[w])
-				dfs(node);
-			if (low[w] < min) min = low[w];
+			// All neighbours done
+			depth--;
+			int min = callMin[depth + 1];
+			if (min < low[v]) {
+				low[v] = min;
+			}
+			else {
+				int w;
+				do {
+					w = stack[--top];
+					id[w] = count;
+					low[w] = size;
+				} while (w != v);
+				count++;
+			}
+			// Back in parent
+			if (depth >= 0 && low[v] < callMin[depth]) {
+				callMin[depth] = low[v];
+			}
 		}
-		if (min < low[v]) { low[v] = min; return; }
-		int w;
-		do {
-			w = stack.pop();
-			id[w] = count;
-			low[w] = size;
-		} while (w != v);
-		count++;
+	}
+
+	private void enter(int v, int depth) {
+		marked[v] = true;
+		low[v] = pre++;
+		stack[top++] = v;
+		callNode[depth] = v;
+		callCursor[depth] = offsets[v];
+		callMin[depth] = low[v];
 	}
 
 	private int count() {
 		return count;
 	}
 
+	// Getters
+	// SCC ids are indexed by Neo4j node id
+	public int[] getComponentIds() {
+		return id;
+	}
+
+	public int getNumComponents() {
+		return count;
+	}
+
+	// Bowtie classes are indexed by Neo4j node id, null before bowTie()
+	public byte[] getClasses() {
+		return classes;
+	}
+
 	private int id(int v) {
 		return id[v];
 	}
 
-	private static void printNodes(HashSet<Integer> set) {
-		System.out.print("\t");
-		for (int id : set) {
-			System.out.print(MyNeo4j.gdbs.getNodeById(id).getProperty(StaticConfig.nodeName) + "; ");
+	private void printNodes(BitSet set) {
+		if (!printNodes) {
+			return;
+		}
+		PrintStream out = ResultExport.console();
+		out.print("\t");
+		for (int id = set.nextSetBit(0); id >= 0; id = set.nextSetBit(id + 1)) {
+			out.print(MyNeo4j.gdbs.getNodeById(id).getProperty(StaticConfig.nodeName) + "; ");
 		}
-		System.out.println("");
+		out.println("");
+		out.flush();
 	}
 }
@@ -0,0 +1,456 @@
+package ch.uzh.bf;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Neo4j Version 2.2.5
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+public class EdgeListLoader {
+
+	/*
+	 * Streaming loader for ownership networks stored as delimited text (CSV, TSV):
+	 *   edge file:  source, target, weight      (one relationship per line)
+	 *   value file: node, value                 (optional, missing values are 0)
+	 * Nodes are identified by non-negative integer keys of at most 18 digits (so
+	 * they fit a long) and get dense ids 0..n-1 in order of first appearance. Lines starting with '#' are skipped, as is the
+	 * first line if header is set. Fields are parsed straight from the read buffer,
+	 * without a String per line or field.
+	 * The result can be turned into a GraphSnapshot and/or inserted into Neo4j in
+	 * chunked transactions
+	 */
+	private static final int bufferSize = 1 << 20;
+	private static final int maxKeyDigits = 18;
+
+	private byte delimiter;
+	private boolean header;
+
+	// Nodes
+	private LongIntMap denseId;      // key -> dense id
+	private int numNodes;
+	private long[] keys;             // keys[v] = key of node v
+	private double[] values;         // values[v] = VALUE of node v
+	private long[] nodeIds;          // nodeIds[v] = Neo4j id of node v, once inserted
+
+	// Relationships in file order
+	private int numRels;
+	private int[] sources;
+	private int[] targets;
+	private double[] weights;
+
+	public EdgeListLoader(char delimiter, boolean header) {
+		this.delimiter = (byte) delimiter;
+		this.header = header;
+		denseId = new LongIntMap(1 << 16);
+		keys = new long[1 << 16];
+		values = new double[1 << 16];
+		sources = new int[1 << 16];
+		targets = new int[1 << 16];
+		weights = new double[1 << 16];
+	}
+
+	// Delimiter from file name: tab for .tsv/.tab files, comma otherwise
+	public static char delimiterOf(String file) {
+		return (file.endsWith(".tsv") || file.endsWith(".tab")) ? '\t' : ',';
+	}
+
+	// *** Parsing
+	public void loadValues(String file) throws IOException {
+		System.out.println("\n### Loading node values from " + file);
+		long start = System.currentTimeMillis();
+		long rows = 0;
+		int[] cut = new int[2];
+		Lines lines = open(file);
+		try {
+			while (lines.next()) {
+				split(lines, cut, 2);
+				addValue(parseKey(lines, lines.start, cut[0]), parseDouble(lines, cut[0] + 1, cut[1]));
+				rows++;
+			}
+		}
+		finally {
+			lines.close();
+		}
+		report("rows", rows, start);
+	}
+
+	public void loadEdges(String file) throws IOException {
+		System.out.println("\n### Loading relationships from " + file);
+		long start = System.currentTimeMillis();
+		long rows = 0;
+		int[] cut = new int[3];
+		Lines lines = open(file);
+		try {
+			while (lines.next()) {
+				split(lines, cut, 3);
+				long from = parseKey(lines, lines.start, cut[0]);
+				long to = parseKey(lines, cut[0] + 1, cut[1]);
+				addEdge(from, to, parseDouble(lines, cut[1] + 1, cut[2]));
+				rows++;
+			}
+		}
+		finally {
+			lines.close();
+		}
+		report("rows", rows, start);
+	}
+
+	// Edge file and, if not null, value file
+	public static EdgeListLoader fromFiles(String edgeFile, String valueFile, boolean header) throws IOException {
+		EdgeListLoader loader = new EdgeListLoader(delimiterOf(edgeFile), header);
+		if (valueFile != null) {
+			loader.loadValues(valueFile);
+		}
+		loader.loadEdges(edgeFile);
+		return loader;
+	}
+
+	// *** Direct input, e.g., from NetworkGenerator
+	public void addValue(long key, double value) {
+		int v = node(key);
+		values[v] = value;
+	}
+
+	public void addEdge(long from, long to, double weight) {
+		int v = node(from);
+		int u = node(to);
+		if (numRels == sources.length) {
+			sources = Arrays.copyOf(sources, 2 * numRels);
+			targets = Arrays.copyOf(targets, 2 * numRels);
+			weights = Arrays.copyOf(weights, 2 * numRels);
+		}
+		sources[numRels] = v;
+		targets[numRels] = u;
+		weights[numRels] = weight;
+		numRels++;
+	}
+
+	private Lines open(String file) throws IOException {
+		Lines lines = new Lines(new FileInputStream(file));
+		if (header) {
+			lines.line();
+		}
+		return lines;
+	}
+
+	// Lines of a file straight from a byte buffer, no String per line or field.
+	// Skips empty lines and lines starting with '#' (except for the header)
+	private static final class Lines {
+		private InputStream in;
+		private byte[] buf = new byte[bufferSize];
+		private int pos;                 // start of the unread bytes
+		private int limit;               // end of the bytes read
+		private int scan;                // bytes pos..scan-1 have no line break
+		int start;                       // current line is buf[start..end-1], no line break
+		int end;
+
+		Lines(InputStream in) {
+			this.in = in;
+		}
+
+		boolean next() throws IOException {
+			while (line()) {
+				if (end > start && buf[start] != '#') {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean line() throws IOException {
+			while (true) {
+				for (int i = scan; i < limit; i++) {
+					if (buf[i] == '\n') {
+						take(i);
+						pos = scan = i + 1;
+						return true;
+					}
+				}
+				scan = limit;
+				// Keep the partial line, grow the buffer only for a line longer than it
+				if (pos > 0) {
+					System.arraycopy(buf, pos, buf, 0, limit - pos);
+					limit -= pos;
+					scan -= pos;
+					pos = 0;
+				}
+				else if (limit == buf.length) {
+					buf = Arrays.copyOf(buf, 2 * buf.length);
+				}
+				int read = in.read(buf, limit, buf.length - limit);
+				if (read < 0) {
+					if (pos == limit) {
+						return false;
+					}
+					take(limit);
+					pos = scan = limit;
+					return true;
+				}
+				limit += read;
+			}
+		}
+
+		private void take(int lineEnd) {
+			start = pos;
+			end = lineEnd > pos && buf[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+		}
+
+		// Current line for error messages only
+		String text() {
+			return new String(buf, start, end - start, StandardCharsets.UTF_8);
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+	// cut[i] = end of field i (the last one ends at the line end)
+	private void split(Lines lines, int[] cut, int fields) {
+		byte[] buf = lines.buf;
+		int pos = lines.start;
+		int f = 0;
+		while (f < fields - 1 && pos < lines.end) {
+			if (buf[pos] == delimiter) {
+				cut[f++] = pos;
+			}
+			pos++;
+		}
+		if (f < fields - 1) {
+			throw new IllegalArgumentException("Expected " + fields + " fields: " + lines.text());
+		}
+		while (pos < lines.end && buf[pos] != delimiter) {
+			pos++;
+		}
+		cut[fields - 1] = pos;
+	}
+
+	private static long parseKey(Lines lines, int from, int to) {
+		byte[] buf = lines.buf;
+		while (from < to && buf[from] == ' ') from++;
+		while (to > from && buf[to - 1] == ' ') to--;
+		if (from == to) {
+			throw new IllegalArgumentException("Empty node key: " + lines.text());
+		}
+		if (to - from > maxKeyDigits) {
+			throw new IllegalArgumentException("Node key has more than " + maxKeyDigits + " digits: " + lines.text());
+		}
+		long key = 0;
+		for (int i = from; i < to; i++) {
+			int c = buf[i];
+			if (c < '0' || c > '9') {
+				throw new IllegalArgumentException("Node key is not a non-negative integer: " + lines.text());
+			}
+			key = key * 10 + (c - '0');
+		}
+		return key;
+	}
+
+	// Decimal number from bytes from..to-1. Plain decimals with up to 18 digits and
+	// a small exponent are converted exactly (one multiplication or division by an
+	// exact power of ten); anything else goes through Double.parseDouble
+	private static double parseDouble(Lines lines, int from, int to) {
+		byte[] buf = lines.buf;
+		while (from < to && buf[from] == ' ') from++;
+		while (to > from && buf[to - 1] == ' ') to--;
+		int i = from;
+		boolean negative = i < to && buf[i] == '-';
+		if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean any = false;
+		boolean fraction = false;
+		for (; i < to; i++) {
+			int c = buf[i];
+			if (c >= '0' && c <= '9') {
+				any = true;
+				if (mantissa == 0 && c == '0') {
+					// leading zero
+				}
+				else if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					digits++;
+				}
+				else {
+					return slowDouble(lines, from, to);
+				}
+				if (fraction) {
+					exponent--;
+				}
+			}
+			else if (c == '.' && !fraction) {
+				fraction = true;
+			}
+			else {
+				break;
+			}
+		}
+		if (i < to && (buf[i] == 'e' || buf[i] == 'E') && any) {
+			i++;
+			boolean negativeExp = i < to && buf[i] == '-';
+			if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+				i++;
+			}
+			int e = 0;
+			int start = i;
+			for (; i < to && buf[i] >= '0' && buf[i] <= '9' && e < 1000; i++) {
+				e = e * 10 + (buf[i] - '0');
+			}
+			if (i == start) {
+				return slowDouble(lines, from, to);
+			}
+			exponent += negativeExp ? -e : e;
+		}
+		if (!any || i != to || mantissa >= (1L << 53) || exponent < -22 || exponent > 22) {
+			return slowDouble(lines, from, to);
+		}
+		double d = exponent < 0 ? mantissa / pow10[-exponent] : mantissa * pow10[exponent];
+		return negative ? -d : d;
+	}
+
+	private static final double[] pow10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private static double slowDouble(Lines lines, int from, int to) {
+		try {
+			return Double.parseDouble(new String(lines.buf, from, to - from, StandardCharsets.UTF_8));
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a number: " + lines.text(), e);
+		}
+	}
+
+	// Dense id of key, added if new
+	private int node(long key) {
+		int v = denseId.get(key);
+		if (v < 0) {
+			v = numNodes++;
+			if (v == keys.length) {
+				keys = Arrays.copyOf(keys, 2 * v);
+				values = Arrays.copyOf(values, 2 * v);
+			}
+			keys[v] = key;
+			denseId.put(key, v);
+		}
+		return v;
+	}
+
+	private static void report(String what, long count, long start) {
+		long time = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println(count + " " + what + " in " + time + " ms (" + (count * 1000 / time) + " " + what + "/s)");
+	}
+
+	// *** In-memory target
+	// CSR snapshot by counting sort of the relationships on their source; names are
+	// kept like in a snapshot file, so no String per node and the dictionary of the
+	// snapshot hashes the digits directly
+	public GraphSnapshot toSnapshot() {
+		int n = numNodes;
+		int[] offsets = new int[n + 1];
+		for (int r = 0; r < numRels; r++) {
+			offsets[sources[r] + 1]++;
+		}
+		for (int v = 0; v < n; v++) {
+			offsets[v + 1] += offsets[v];
+		}
+		int[] fill = Arrays.copyOf(offsets, n);
+		int[] csrTargets = new int[numRels];
+		double[] csrWeights = new double[numRels];
+		for (int r = 0; r < numRels; r++) {
+			int i = fill[sources[r]]++;
+			csrTargets[i] = targets[r];
+			csrWeights[i] = weights[r];
+		}
+		// Names are the keys as decimal digits, written straight into a byte arena
+		int[] nameOffsets = new int[n + 1];
+		for (int v = 0; v < n; v++) {
+			nameOffsets[v + 1] = nameOffsets[v] + digits(keys[v]);
+		}
+		byte[] nameBytes = new byte[nameOffsets[n]];
+		for (int v = 0; v < n; v++) {
+			long key = keys[v];
+			for (int i = nameOffsets[v + 1] - 1; i >= nameOffsets[v]; i--) {
+				nameBytes[i] = (byte) ('0' + key % 10);
+				key /= 10;
+			}
+		}
+		long[] ids = nodeIds != null ? nodeIds : Arrays.copyOf(keys, n);
+		return new GraphSnapshot(n, numRels, IntBuffer.wrap(offsets), IntBuffer.wrap(csrTargets), DoubleBuffer.wrap(csrWeights),
+				DoubleBuffer.wrap(Arrays.copyOf(values, n)), LongBuffer.wrap(ids), IntBuffer.wrap(nameOffsets), ByteBuffer.wrap(nameBytes));
+	}
+
+	private static int digits(long key) {
+		int d = 1;
+		while (key >= 10) {
+			key /= 10;
+			d++;
+		}
+		return d;
+	}
+
+	// *** Neo4j target
+	// Insert nodes and relationships, committing every batchSize operations
+	public void toNeo4j(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1, found " + batchSize);
+		}
+		System.out.println("\n### Inserting into Neo4j");
+		long start = System.currentTimeMillis();
+		nodeIds = new long[numNodes];
+		int ops = 0;
+		Transaction tx = MyNeo4j.gdbs.beginTx();
+		try {
+			for (int v = 0; v < numNodes; v++) {
+				Node n = MyNeo4j.gdbs.createNode(StaticConfig.NodeLabel.MYNODE);
+				n.setProperty(StaticConfig.nodeName, String.valueOf(keys[v]));
+				n.setProperty(StaticConfig.nodeValue, values[v]);
+				n.setProperty(StaticConfig.nodeInfluenceIndex, 0.0);
+				nodeIds[v] = n.getId();
+				if (++ops % batchSize == 0) {
+					tx.success();
+					tx.close();
+					tx = MyNeo4j.gdbs.beginTx();
+				}
+			}
+			for (int r = 0; r < numRels; r++) {
+				Node one = MyNeo4j.gdbs.getNodeById(nodeIds[sources[r]]);
+				Node two = MyNeo4j.gdbs.getNodeById(nodeIds[targets[r]]);
+				Relationship rel = one.createRelationshipTo(two, StaticConfig.relType);
+				rel.setProperty(StaticConfig.weight, weights[r]);
+				if (++ops % batchSize == 0) {
+					tx.success();
+					tx.close();
+					tx = MyNeo4j.gdbs.beginTx();
+				}
+			}
+			tx.success();
+		}
+		finally {
+			tx.close();
+		}
+		System.out.println("Inserted " + numNodes + " nodes and " + numRels + " rels");
+		report("inserts", ops, start);
+	}
+
+	// Getters
+	public int getNumNodes() {
+		return numNodes;
+	}
+
+	public int getNumRels() {
+		return numRels;
+	}
+}
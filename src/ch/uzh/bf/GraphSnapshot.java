@@ -0,0 +1,270 @@
+package ch.uzh.bf;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Neo4j Version 2.2.5
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+public class GraphSnapshot {
+
+	/*
+	 * Compact in-memory copy of the network in compressed sparse row (CSR) layout.
+	 * Nodes are addressed by a dense id 0..numNodes-1 (in getAllNodes() order),
+	 * the outgoing relationships of node v are offsets[v]..offsets[v+1]-1.
+	 * The sections are buffers: wrapped arrays for a snapshot built in memory, the
+	 * mapped sections of a snapshot file (see SnapshotFile) otherwise, so a file is
+	 * read through the page cache and not copied to the heap. Traversals read them
+	 * with absolute get(i) only, which is safe from any number of threads
+	 */
+	private int numNodes;
+	private int numRels;
+	private IntBuffer offsets;       // offsets[v] = index of first relationship of v
+	private IntBuffer targets;       // targets[r] = dense id of end node of relationship r
+	private DoubleBuffer weights;    // weights[r] = WEIGHT_MERGED of relationship r
+	private DoubleBuffer values;     // values[v] = VALUE of node v
+	private LongBuffer nodeIds;      // nodeIds[v] = Neo4j id of node v
+	private String[] names;          // names[v] = NAME of node v
+
+	// Upstream relationships, built on first use (on the heap)
+	private IntBuffer inOffsets;     // inOffsets[v]..inOffsets[v+1]-1 = upstream relationships of v
+	private IntBuffer sources;       // sources[r] = start node of upstream relationship r
+
+	// Names of a snapshot file or edge list, decoded on access (names is null then)
+	private IntBuffer nameOffsets;   // bytes nameOffsets[v]..nameOffsets[v+1]-1 hold the name of v
+	private ByteBuffer nameBytes;    // UTF-8 encoded names
+	private NameDictionary dictionary; // name -> dense id, built on first use
+
+	public GraphSnapshot(int[] offsets, int[] targets, double[] weights, double[] values, long[] nodeIds, String[] names) {
+		this.numNodes = values.length;
+		this.numRels = targets.length;
+		this.offsets = IntBuffer.wrap(offsets);
+		this.targets = IntBuffer.wrap(targets);
+		this.weights = DoubleBuffer.wrap(weights);
+		this.values = DoubleBuffer.wrap(values);
+		this.nodeIds = LongBuffer.wrap(nodeIds);
+		this.names = names;
+	}
+
+	GraphSnapshot(int numNodes, int numRels, IntBuffer offsets, IntBuffer targets, DoubleBuffer weights, DoubleBuffer values, LongBuffer nodeIds, IntBuffer nameOffsets, ByteBuffer nameBytes) {
+		this.numNodes = numNodes;
+		this.numRels = numRels;
+		this.offsets = offsets;
+		this.targets = targets;
+		this.weights = weights;
+		this.values = values;
+		this.nodeIds = nodeIds;
+		this.nameOffsets = nameOffsets;
+		this.nameBytes = nameBytes;
+	}
+
+	// *** Load from Neo4j
+	// Needs an open transaction
+	public static GraphSnapshot fromNeo4j(Direction dir) {
+		System.out.println("\n### Loading graph snapshot");
+		long start = System.currentTimeMillis();
+
+		// Nodes
+		int n = 0;
+		long maxId = -1;
+		for (Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
+			maxId = Math.max(maxId, node.getId());
+			n++;
+		}
+		long[] nodeIds = new long[n];
+		double[] values = new double[n];
+		String[] names = new String[n];
+		int[] denseId = new int[(int) (maxId + 1)];
+		Arrays.fill(denseId, -1);
+		int[] offsets = new int[n + 1];
+		int v = 0;
+		for (Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
+			nodeIds[v] = node.getId();
+			values[v] = (double) node.getProperty(StaticConfig.nodeValue);
+			names[v] = (String) node.getProperty(StaticConfig.nodeName);
+			denseId[(int) node.getId()] = v;
+			offsets[v + 1] = offsets[v] + node.getDegree(dir);
+			v++;
+		}
+
+		// Relationships, in the order Neo4j returns them per node
+		int m = offsets[n];
+		int[] targets = new int[m];
+		double[] weights = new double[m];
+		for (v = 0; v < n; v++) {
+			int r = offsets[v];
+			Node node = MyNeo4j.gdbs.getNodeById(nodeIds[v]);
+			for (Relationship rel : node.getRelationships(dir)) {
+				targets[r] = denseId[(int) rel.getOtherNode(node).getId()];
+				weights[r] = (double) rel.getProperty(StaticConfig.weight);
+				r++;
+			}
+		}
+
+		GraphSnapshot snap = new GraphSnapshot(offsets, targets, weights, values, nodeIds, names);
+		System.out.println("Loaded " + n + " nodes and " + m + " rels in " + (System.currentTimeMillis() - start) + " ms");
+		return snap;
+	}
+
+	// *** Reverse CSR by counting sort of the relationships on their target
+	private void buildReverse() {
+		int[] in = new int[numNodes + 1];
+		for (int r = 0; r < numRels; r++) {
+			in[targets.get(r) + 1]++;
+		}
+		for (int v = 0; v < numNodes; v++) {
+			in[v + 1] += in[v];
+		}
+		int[] fill = Arrays.copyOf(in, numNodes);
+		int[] src = new int[numRels];
+		for (int v = 0; v < numNodes; v++) {
+			for (int r = offsets.get(v); r < offsets.get(v + 1); r++) {
+				src[fill[targets.get(r)]++] = v;
+			}
+		}
+		sources = IntBuffer.wrap(src);
+		inOffsets = IntBuffer.wrap(in);
+	}
+
+	// *** Write results back to Neo4j in one pass
+	// Only nodes with mask[v] set are written (all if mask is null)
+	public void writeBack(BatchWriter writer, String property, double[] result, boolean[] mask) {
+		for (int v = 0; v < numNodes; v++) {
+			if (mask == null || mask[v]) {
+				writer.setProperty(nodeIds.get(v), property, result[v]);
+			}
+		}
+	}
+
+	// BOWTIE property of every node as StaticConfig.BowTie ordinal, -1 if not set.
+	// Needs an open transaction
+	public byte[] readBowtie() {
+		byte[] classes = new byte[numNodes];
+		for (int v = 0; v < numNodes; v++) {
+			Object bt = MyNeo4j.gdbs.getNodeById(nodeIds.get(v)).getProperty(StaticConfig.nodeBT, null);
+			classes[v] = bt == null ? -1 : (byte) StaticConfig.BowTie.valueOf((String) bt).ordinal();
+		}
+		return classes;
+	}
+
+	// *** Content hash
+	// 64-bit hash of structure, weights, values, node ids and names, in dense id
+	// order. Names are hashed as UTF-8 bytes, so a snapshot read from a file has the
+	// same fingerprint as the one it was written from
+	public long fingerprint() {
+		long h = mix(0, numNodes);
+		h = mix(h, numRels);
+		for (int v = 0; v <= numNodes; v++) {
+			h = mix(h, offsets.get(v));
+		}
+		for (int r = 0; r < numRels; r++) {
+			h = mix(h, targets.get(r));
+			h = mix(h, Double.doubleToLongBits(weights.get(r)));
+		}
+		for (int v = 0; v < numNodes; v++) {
+			h = mix(h, Double.doubleToLongBits(values.get(v)));
+			h = mix(h, nodeIds.get(v));
+			byte[] name = names != null ? names[v].getBytes(StandardCharsets.UTF_8) : null;
+			int from = names != null ? 0 : nameOffsets.get(v);
+			int to = names != null ? name.length : nameOffsets.get(v + 1);
+			long word = to - from;
+			for (int i = from; i < to; i++) {
+				word = word * 31 + (names != null ? name[i] : nameBytes.get(i));
+			}
+			h = mix(h, word);
+		}
+		return h;
+	}
+
+	// One step of the hash: the splitmix64 finalizer of x, chained into h
+	static long mix(long h, long x) {
+		x += 0x9E3779B97F4A7C15L;
+		x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+		x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+		x ^= x >>> 31;
+		return Long.rotateLeft(h ^ x, 23) * 0x9E3779B97F4A7C15L;
+	}
+
+	// Getters
+	public int getNumNodes() {
+		return numNodes;
+	}
+
+	public int getNumRels() {
+		return numRels;
+	}
+
+	public IntBuffer getOffsets() {
+		return offsets;
+	}
+
+	public IntBuffer getTargets() {
+		return targets;
+	}
+
+	public DoubleBuffer getWeights() {
+		return weights;
+	}
+
+	public DoubleBuffer getValues() {
+		return values;
+	}
+
+	public IntBuffer getInOffsets() {
+		if (inOffsets == null) {
+			buildReverse();
+		}
+		return inOffsets;
+	}
+
+	public IntBuffer getSources() {
+		if (inOffsets == null) {
+			buildReverse();
+		}
+		return sources;
+	}
+
+	public LongBuffer getNodeIds() {
+		return nodeIds;
+	}
+
+	// Dense id of a node name, over the name dictionary of the file if there is one
+	public NameDictionary getDictionary() {
+		if (dictionary == null) {
+			dictionary = names != null ? NameDictionary.of(names) : new NameDictionary(nameOffsets, nameBytes, numNodes);
+		}
+		return dictionary;
+	}
+
+	// Copies of the sections, for code that needs arrays
+	public double[] copyValues() {
+		double[] copy = new double[numNodes];
+		values.duplicate().get(copy);
+		return copy;
+	}
+
+	public long[] copyNodeIds() {
+		long[] copy = new long[numNodes];
+		nodeIds.duplicate().get(copy);
+		return copy;
+	}
+
+	public String getName(int v) {
+		if (names != null) {
+			return names[v];
+		}
+		int from = nameOffsets.get(v);
+		byte[] bytes = new byte[nameOffsets.get(v + 1) - from];
+		ByteBuffer slice = nameBytes.duplicate();
+		slice.position(from);
+		slice.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,362 @@
+package ch.uzh.bf;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Neo4j Version 2.2.5
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+public class GraphUpdate {
+
+	/*
+	 * Batch of changes to a GraphSnapshot: relationship inserts, deletes and
+	 * reweights, and node value changes. Nodes are dense ids of the snapshot.
+	 * Each relationship and each node can be changed at most once per batch.
+	 * As a file, one change per line (same conventions as EdgeListLoader):
+	 *   insert, source, target, weight
+	 *   delete, source, target
+	 *   weight, source, target, weight
+	 *   value, node, value
+	 */
+	public static enum Op {INSERT, DELETE, WEIGHT};
+
+	private int numNodes;
+
+	// Relationship changes
+	private LongIntMap relIndex;     // (source, target) -> index of its change
+	private int numRels;
+	private Op[] ops;
+	private int[] from;
+	private int[] to;
+	private double[] weight;
+
+	// Value changes
+	private int numValues;
+	private int[] valueNodes;
+	private double[] newValues;
+	private boolean[] valueChanged;
+
+	public GraphUpdate(int numNodes) {
+		this.numNodes = numNodes;
+		relIndex = new LongIntMap(64);
+		ops = new Op[64];
+		from = new int[64];
+		to = new int[64];
+		weight = new double[64];
+		valueNodes = new int[64];
+		newValues = new double[64];
+		valueChanged = new boolean[numNodes];
+	}
+
+	// *** Changes
+	public void insertEdge(int source, int target, double w) {
+		addRel(Op.INSERT, source, target, w);
+	}
+
+	public void deleteEdge(int source, int target) {
+		addRel(Op.DELETE, source, target, 0.0);
+	}
+
+	public void setWeight(int source, int target, double w) {
+		addRel(Op.WEIGHT, source, target, w);
+	}
+
+	public void setValue(int v, double value) {
+		checkNode(v);
+		if (valueChanged[v]) {
+			throw new IllegalArgumentException("Value of node " + v + " changed twice");
+		}
+		valueChanged[v] = true;
+		if (numValues == valueNodes.length) {
+			valueNodes = Arrays.copyOf(valueNodes, 2 * numValues);
+			newValues = Arrays.copyOf(newValues, 2 * numValues);
+		}
+		valueNodes[numValues] = v;
+		newValues[numValues] = value;
+		numValues++;
+	}
+
+	private void addRel(Op op, int source, int target, double w) {
+		checkNode(source);
+		checkNode(target);
+		long key = key(source, target);
+		if (relIndex.get(key) >= 0) {
+			throw new IllegalArgumentException("Relationship " + source + " -> " + target + " changed twice");
+		}
+		if (numRels == ops.length) {
+			ops = Arrays.copyOf(ops, 2 * numRels);
+			from = Arrays.copyOf(from, 2 * numRels);
+			to = Arrays.copyOf(to, 2 * numRels);
+			weight = Arrays.copyOf(weight, 2 * numRels);
+		}
+		relIndex.put(key, numRels);
+		ops[numRels] = op;
+		from[numRels] = source;
+		to[numRels] = target;
+		weight[numRels] = w;
+		numRels++;
+	}
+
+	private void checkNode(int v) {
+		if (v < 0 || v >= numNodes) {
+			throw new IllegalArgumentException("Unknown node " + v);
+		}
+	}
+
+	private static long key(int source, int target) {
+		return ((long) source << 32) | target;
+	}
+
+	// Changes from a delimited text file, nodes by name
+	public static GraphUpdate load(String file, boolean header, GraphSnapshot snap) throws IOException {
+		System.out.println("\n### Loading graph update from " + file);
+		char delimiter = EdgeListLoader.delimiterOf(file);
+		NameDictionary byName = snap.getDictionary();
+		GraphUpdate update = new GraphUpdate(snap.getNumNodes());
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			if (header) {
+				reader.readLine();
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.charAt(0) == '#') {
+					continue;
+				}
+				String[] f = line.split(delimiter == '\t' ? "\t" : ",", -1);
+				String op = f[0].trim().toLowerCase();
+				if (op.equals("value") && f.length == 3) {
+					update.setValue(node(byName, f[1], line), Double.parseDouble(f[2].trim()));
+				}
+				else if (op.equals("insert") && f.length == 4) {
+					update.insertEdge(node(byName, f[1], line), node(byName, f[2], line), Double.parseDouble(f[3].trim()));
+				}
+				else if (op.equals("delete") && f.length == 3) {
+					update.deleteEdge(node(byName, f[1], line), node(byName, f[2], line));
+				}
+				else if (op.equals("weight") && f.length == 4) {
+					update.setWeight(node(byName, f[1], line), node(byName, f[2], line), Double.parseDouble(f[3].trim()));
+				}
+				else {
+					throw new IllegalArgumentException("Unknown change: " + line);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		System.out.println("Found " + update.numRels + " relationship and " + update.numValues + " value changes");
+		return update;
+	}
+
+	private static int node(NameDictionary byName, String name, String line) {
+		int v = byName.get(name.trim());
+		if (v == NameDictionary.missing) {
+			throw new IllegalArgumentException("Unknown node " + name.trim() + ": " + line);
+		}
+		return v;
+	}
+
+	// *** Apply to a snapshot
+	// Returns the changed copy, the snapshot itself is left as is. Inserted
+	// relationships follow the existing ones of their source node
+	public GraphSnapshot applyTo(GraphSnapshot snap) {
+		int n = snap.getNumNodes();
+		IntBuffer offsets = snap.getOffsets();
+		IntBuffer targets = snap.getTargets();
+		DoubleBuffer weights = snap.getWeights();
+
+		// Match deletes and reweights with existing relationships
+		boolean[] found = new boolean[numRels];
+		int deleted = 0;
+		for (int i = 0; i < numRels; i++) {
+			if (ops[i] == Op.INSERT) {
+				continue;
+			}
+			for (int r = offsets.get(from[i]); r < offsets.get(from[i] + 1); r++) {
+				if (targets.get(r) == to[i]) {
+					found[i] = true;
+					if (ops[i] == Op.DELETE) {
+						deleted++;
+					}
+				}
+			}
+			if (!found[i]) {
+				throw new IllegalArgumentException("No relationship " + from[i] + " -> " + to[i] + " to " + ops[i].toString().toLowerCase());
+			}
+		}
+
+		// Inserts grouped by source node
+		int[] inserts = new int[n + 1];
+		for (int i = 0; i < numRels; i++) {
+			if (ops[i] == Op.INSERT) {
+				inserts[from[i] + 1]++;
+			}
+		}
+		for (int v = 0; v < n; v++) {
+			inserts[v + 1] += inserts[v];
+		}
+		int[] insertIndex = new int[inserts[n]];
+		int[] fill = Arrays.copyOf(inserts, n);
+		for (int i = 0; i < numRels; i++) {
+			if (ops[i] == Op.INSERT) {
+				insertIndex[fill[from[i]]++] = i;
+			}
+		}
+
+		// New CSR
+		int[] newOffsets = new int[n + 1];
+		int[] newTargets = new int[snap.getNumRels() - deleted + inserts[n]];
+		double[] newWeights = new double[newTargets.length];
+		int k = 0;
+		for (int v = 0; v < n; v++) {
+			newOffsets[v] = k;
+			for (int r = offsets.get(v); r < offsets.get(v + 1); r++) {
+				int i = relIndex.get(key(v, targets.get(r)));
+				if (i < 0) {
+					newTargets[k] = targets.get(r);
+					newWeights[k] = weights.get(r);
+					k++;
+				}
+				else if (ops[i] == Op.WEIGHT) {
+					newTargets[k] = targets.get(r);
+					newWeights[k] = weight[i];
+					k++;
+				}
+				else if (ops[i] == Op.INSERT) {
+					throw new IllegalArgumentException("Relationship " + v + " -> " + targets.get(r) + " already exists");
+				}
+			}
+			for (int j = inserts[v]; j < inserts[v + 1]; j++) {
+				newTargets[k] = to[insertIndex[j]];
+				newWeights[k] = weight[insertIndex[j]];
+				k++;
+			}
+		}
+		newOffsets[n] = k;
+
+		double[] values = snap.copyValues();
+		for (int i = 0; i < numValues; i++) {
+			values[valueNodes[i]] = newValues[i];
+		}
+		String[] names = new String[n];
+		for (int v = 0; v < n; v++) {
+			names[v] = snap.getName(v);
+		}
+		return new GraphSnapshot(newOffsets, newTargets, newWeights, values, snap.copyNodeIds(), names);
+	}
+
+	// *** Apply to Neo4j
+	// Nodes are those of snap, committing every batchSize operations
+	public void toNeo4j(GraphSnapshot snap, Direction dir, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1, found " + batchSize);
+		}
+		System.out.println("\n### Updating Neo4j");
+		LongBuffer nodeIds = snap.getNodeIds();
+		int cnt = 0;
+		Transaction tx = MyNeo4j.gdbs.beginTx();
+		try {
+			for (int i = 0; i < numRels; i++) {
+				Node one = MyNeo4j.gdbs.getNodeById(nodeIds.get(from[i]));
+				if (ops[i] == Op.INSERT) {
+					Node two = MyNeo4j.gdbs.getNodeById(nodeIds.get(to[i]));
+					Relationship rel = dir == Direction.INCOMING ? two.createRelationshipTo(one, StaticConfig.relType) : one.createRelationshipTo(two, StaticConfig.relType);
+					rel.setProperty(StaticConfig.weight, weight[i]);
+				}
+				else {
+					ArrayList<Relationship> rels = new ArrayList<Relationship>();
+					for (Relationship rel : one.getRelationships(dir)) {
+						if (rel.getOtherNode(one).getId() == nodeIds.get(to[i])) {
+							rels.add(rel);
+						}
+					}
+					for (Relationship rel : rels) {
+						if (ops[i] == Op.DELETE) {
+							rel.delete();
+						}
+						else {
+							rel.setProperty(StaticConfig.weight, weight[i]);
+						}
+					}
+				}
+				if (++cnt % batchSize == 0) {
+					tx.success();
+					tx.close();
+					tx = MyNeo4j.gdbs.beginTx();
+				}
+			}
+			for (int i = 0; i < numValues; i++) {
+				MyNeo4j.gdbs.getNodeById(nodeIds.get(valueNodes[i])).setProperty(StaticConfig.nodeValue, newValues[i]);
+				if (++cnt % batchSize == 0) {
+					tx.success();
+					tx.close();
+					tx = MyNeo4j.gdbs.beginTx();
+				}
+			}
+			tx.success();
+		}
+		finally {
+			tx.close();
+		}
+		System.out.println("Applied " + cnt + " changes");
+	}
+
+	// *** Affected nodes
+	// The Influence Index of u only depends on the trails downstream of u, so it
+	// can only change if u reaches the source of a changed relationship or a node
+	// with a changed value. Any trail in the old or new network that uses a changed
+	// relationship starts with a prefix without changes up to the first one, hence
+	// reverse reachability from these seeds in the new network is enough
+	public boolean[] affected(GraphSnapshot changed) {
+		int n = changed.getNumNodes();
+		IntBuffer inOffsets = changed.getInOffsets();
+		IntBuffer sources = changed.getSources();
+		boolean[] seen = new boolean[n];
+		int[] queue = new int[n];
+		int tail = 0;
+		for (int i = 0; i < numRels; i++) {
+			if (!seen[from[i]]) {
+				seen[from[i]] = true;
+				queue[tail++] = from[i];
+			}
+		}
+		for (int i = 0; i < numValues; i++) {
+			if (!seen[valueNodes[i]]) {
+				seen[valueNodes[i]] = true;
+				queue[tail++] = valueNodes[i];
+			}
+		}
+		for (int head = 0; head < tail; head++) {
+			int v = queue[head];
+			for (int r = inOffsets.get(v); r < inOffsets.get(v + 1); r++) {
+				int u = sources.get(r);
+				if (!seen[u]) {
+					seen[u] = true;
+					queue[tail++] = u;
+				}
+			}
+		}
+		return seen;
+	}
+
+	// Getters
+	public int getNumRelChanges() {
+		return numRels;
+	}
+
+	public int getNumValueChanges() {
+		return numValues;
+	}
+}
@@ -1,6 +1,10 @@
 package ch.uzh.bf;
 
+import java.io.PrintStream;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
 import java.text.DecimalFormat;
+import java.util.BitSet;
 
 // Neo4j Version 2.2.5
 import org.neo4j.graphdb.Node;
@@ -21,9 +25,18 @@ public class InfluenceIndex {
 	private DynamicConfig cfg;
 	private DecimalFormat myFormatter;
 
+	// Run-scoped traversal state, indexed by Neo4j node id
+	private BitSet active;           // node is on the current trail
+	private BitSet tagged;           // node is a target of the cumulative Influence Index
+	private int depth;               // length of the current trail
+	private Metrics.Probe probe;     // counts for the run summary
+
 	public InfluenceIndex(DynamicConfig cfg) {
 		myFormatter = new DecimalFormat("###.##########");
 		this.cfg = cfg;
+		active = new BitSet();
+		tagged = new BitSet();
+		probe = new Metrics.Probe();
 	}
 
 	// *** Output results to console
@@ -31,10 +44,14 @@ public class InfluenceIndex {
 	public void evaluate() {
 		System.out.println("\n### Influence Index (by node name)");
 		double ii = 0.0;
+		PrintStream out = ResultExport.console();
 		for (Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
 			ii += (double) node.getProperty(StaticConfig.nodeInfluenceIndex);
-			System.out.print(node.getProperty(StaticConfig.nodeName) + ": " + myFormatter.format(node.getProperty(StaticConfig.nodeInfluenceIndex)) + "; ");
+			if (cfg.printNodes) {
+				out.print(node.getProperty(StaticConfig.nodeName) + ": " + myFormatter.format(node.getProperty(StaticConfig.nodeInfluenceIndex)) + "; ");
+			}
 		}
+		out.flush();
 		System.out.println("\nTotal Influence Index value:\t" + ii);
 	}
 
@@ -49,11 +66,10 @@ public class InfluenceIndex {
 		double val = 0.0;
 		for (Node node : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
 			val += (double) node.getProperty(StaticConfig.nodeValue);
-			if (node.getProperty(StaticConfig.nodeTag).equals(StaticConfig.NodeTag.YES.toString())) {
+			if (tagged.get((int) node.getId())) {
 				double nii = (double) node.getProperty(StaticConfig.nodeInfluenceIndex);
 				if (nii > 0) {
-					ii += (double) node.getProperty(StaticConfig.nodeInfluenceIndex);
-					node.setProperty(StaticConfig.nodeTag, StaticConfig.NodeTag.NO.toString());
+					ii += nii;
 				}
 				cnt++;
 			}
@@ -67,7 +83,7 @@ public class InfluenceIndex {
 		int cnt = 0;
 		for (Node sink : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
 			if (sink.getProperty(StaticConfig.nodeBT).equals(cfg.cumulativeTarget.toString())) {
-				sink.setProperty(StaticConfig.nodeTag, StaticConfig.NodeTag.YES.toString());
+				tagged.set((int) sink.getId());
 				cnt++;
 			}
 		}
@@ -77,34 +93,43 @@ public class InfluenceIndex {
 	// *** Main Influence Index code
 	// See Algorithm 1 and 2 in Supplementary Materials of publication
 	public void wrapper() {
+		long start = System.nanoTime();
+		String stage = cfg.cumulativeInfluenceIndex ? "neo4j.cumulative" : "neo4j.ii";
+		BatchWriter writer = new BatchWriter(cfg.batchSize);
 		// Loop through whole graph
 		for (Node n : GlobalGraphOperations.at(MyNeo4j.gdbs).getAllNodes()) {
 
 			// ### Cumulative
 			if (cfg.cumulativeInfluenceIndex) {
-				if (n.getProperty(StaticConfig.nodeTag).equals(StaticConfig.NodeTag.NO.toString())) {
+				if (!tagged.get((int) n.getId())) {
 					continue;
 				}
 			}
 			// ### 
 
 			// Initialize
+			long sourceStart = cfg.metrics ? probe.startSource(stage, n.getId()) : 0;
 			double influenceIndex = 0.0;
+			// Mark node as active
+			int id = (int) n.getId();
+			active.set(id);
 			// Get all outgoing relationships of node and iterate
 			Iterable<Relationship> iterableRel = n.getRelationships(cfg.out);
 			for (Relationship relationship : iterableRel) {
-				// Mark node as active
-				n.setProperty(StaticConfig.nodeSwitch, StaticConfig.NodeSwitch.ON.toString());
 				// Recursive algorithm
 				influenceIndex = crawlDownstream(relationship, 1.0, influenceIndex);
-				// Deactivate if active
-				if (n.getProperty(StaticConfig.nodeSwitch).equals(StaticConfig.NodeSwitch.ON.toString())) {
-					n.setProperty(StaticConfig.nodeSwitch, StaticConfig.NodeSwitch.OFF.toString());
-				}
+			}
+			// Deactivate
+			active.clear(id);
+			if (cfg.metrics) {
+				probe.endSource(sourceStart);
 			}
 			// Assign Influence Index
-			n.setProperty(StaticConfig.nodeInfluenceIndex, influenceIndex);
+			writer.setProperty(n.getId(), StaticConfig.nodeInfluenceIndex, influenceIndex);
 		}
+		writer.close();
+		probe.flush(stage);
+		Metrics.time(stage, start);
 	}
 
 	// Recursive depth first search (DFS) computing the Influence Index contributions from
@@ -112,18 +137,22 @@ public class InfluenceIndex {
 	private double crawlDownstream(Relationship relationship, double indirectWeight, double influenceIndex) {
 		// Initialize
 		Node successor = relationship.getEndNode();
+		int id = (int) successor.getId();
+		probe.edges++;
 
 		// ### Cumulative
 		if (cfg.cumulativeInfluenceIndex) {
 			// Found other tagged (sink) node, go back
-			if (successor.getProperty(StaticConfig.nodeTag).equals(StaticConfig.NodeTag.YES.toString())) {
+			if (tagged.get(id)) {
+				probe.targetCutoffs++;
 				return influenceIndex;
 			}
 		}
 		// ###
 
 		// Been here, go back up
-		if (successor.getProperty(StaticConfig.nodeSwitch).equals(StaticConfig.NodeSwitch.ON.toString())) {
+		if (active.get(id)) {
+			probe.cycleCutoffs++;
 			return influenceIndex;
 		}
 
@@ -139,17 +168,20 @@ public class InfluenceIndex {
 
 		// Update Influence Index and activate
 		double newInfluenceIndex = currentInfluenceIndex + influenceIndex;
-		successor.setProperty(StaticConfig.nodeSwitch, StaticConfig.NodeSwitch.ON.toString());
+		active.set(id);
+		depth++;
+		probe.paths++;
+		probe.depthSum += depth;
+		probe.maxDepth = Math.max(probe.maxDepth, depth);
 
 		// Continue recursively along trails (DFS): Get successors at next level
 		Iterable<Relationship> iterableRel = successor.getRelationships(cfg.out);
 
 		// Reached leaf node, go back up
 		if (!iterableRel.iterator().hasNext()) {
-			// Deactivate if active
-			if (successor.getProperty(StaticConfig.nodeSwitch).equals(StaticConfig.NodeSwitch.ON.toString())) {
-				successor.setProperty(StaticConfig.nodeSwitch, StaticConfig.NodeSwitch.OFF.toString());
-			}
+			// Deactivate
+			active.clear(id);
+			depth--;
 			return newInfluenceIndex;
 		}
 
@@ -158,10 +190,9 @@ public class InfluenceIndex {
 			// Retrieve Influence Index from recursive call
 			newInfluenceIndex = crawlDownstream(newRelationship, newWeight, newInfluenceIndex);
 		}
-		// Deactivate if active
-		if (successor.getProperty(StaticConfig.nodeSwitch).equals(StaticConfig.NodeSwitch.ON.toString())) {
-			successor.setProperty(StaticConfig.nodeSwitch, StaticConfig.NodeSwitch.OFF.toString());
-		}
+		// Deactivate
+		active.clear(id);
+		depth--;
 		// No more relationships, go back up
 		return newInfluenceIndex;
 	}
@@ -174,7 +205,52 @@ public class InfluenceIndex {
 	 *     PLoS ONE 6(10): e25995. doi:10.1371/journal.pone.0025995
 	 *     http://journals.plos.org/plosone/article?id=10.1371/journal.pone.0025995
 	 */
-	public void analyticalComp(DoubleMatrix2D adj, DoubleMatrix1D val, MyBowtieNetwork nw) {
+	// Returns the centrality by node id
+	public double[] analyticalComp(DoubleMatrix2D adj, DoubleMatrix1D val, MyBowtieNetwork nw) {
+		DoubleMatrix1D c = centrality(adj, val);
+
+		System.out.println("\n### Eigenvector centrality variant with no cycle correction (by node id)");
+		if (cfg.printNodes) {
+			PrintStream out = ResultExport.console();
+			for (int i = 0; i < c.size(); i++) {
+				out.print(nw.getIdToName()[i] + ": " + myFormatter.format(c.get(i)) + "; ");
+			}
+			out.flush();
+		}
+		System.out.println("\nTotal centrality value:\t" + c.zSum());
+		return c.toArray();
+	}
+
+	// Dense reference for a loaded or generated network, which has no MyBowtieNetwork:
+	// matrix and value vector from the CSR snapshot, parallel relationships added up.
+	// Returns the centrality by dense id of adj
+	public double[] denseAnalyticalComp(GraphSnapshot adj) {
+		int n = adj.getNumNodes();
+		IntBuffer offsets = adj.getOffsets();
+		IntBuffer targets = adj.getTargets();
+		DoubleBuffer weights = adj.getWeights();
+		DoubleMatrix2D a = new SparseDoubleMatrix2D(n, n);
+		for (int v = 0; v < n; v++) {
+			for (int r = offsets.get(v); r < offsets.get(v + 1); r++) {
+				a.setQuick(v, targets.get(r), a.getQuick(v, targets.get(r)) + weights.get(r));
+			}
+		}
+		DoubleMatrix1D c = centrality(a, new SparseDoubleMatrix1D(adj.copyValues()));
+
+		System.out.println("\n### Eigenvector centrality variant with no cycle correction (by node id)");
+		if (cfg.printNodes) {
+			PrintStream out = ResultExport.console();
+			for (int i = 0; i < n; i++) {
+				out.print(adj.getName(i) + ": " + myFormatter.format(c.get(i)) + "; ");
+			}
+			out.flush();
+		}
+		System.out.println("\nTotal centrality value:\t" + c.zSum());
+		return c.toArray();
+	}
+
+	// c = (I-A)^{-1} A val with the dense inverse
+	public DoubleMatrix1D centrality(DoubleMatrix2D adj, DoubleMatrix1D val) {
 		// Linear algebra support from COLT http://acs.lbl.gov/ACSSoftware/colt/
 		DoubleMatrix2D identity = DoubleFactory2D.sparse.identity(val.size());
 		DoubleDoubleFunction minus = new DoubleDoubleFunction() {
@@ -197,11 +273,33 @@ public class InfluenceIndex {
 		imaInv.zMult(adj, A_tilde); // A_tilde = (I-A)^{-1}b * A
 		DoubleMatrix1D c = new SparseDoubleMatrix1D(val.size());
 		A_tilde.zMult(val, c); // A_tilde * val
-		
+		return c;
+	}
+
+	// Sparse version: c = (I-A)^{-1} A v is found by solving (I-A) c = A v iteratively
+	// on the non-zeros of A only, instead of inverting the dense matrix (I-A)
+	// Returns the centrality by dense id of adj
+	public double[] analyticalComp(GraphSnapshot adj) {
+		SparseSolver solver = new SparseSolver(adj.getOffsets(), adj.getTargets(), adj.getWeights(), cfg.solverTolerance, cfg.solverMaxIterations);
+		double[] c = centrality(adj, solver);
+
 		System.out.println("\n### Eigenvector centrality variant with no cycle correction (by node id)");
-		for (int i = 0; i < c.size(); i++) {
-			System.out.print(nw.getIdToName().get(i) + ": " + myFormatter.format(c.get(i)) + "; ");
+		double sum = 0.0;
+		PrintStream out = ResultExport.console();
+		for (int i = 0; i < c.length; i++) {
+			sum += c[i];
+			if (cfg.printNodes) {
+				out.print(adj.getName(i) + ": " + myFormatter.format(c[i]) + "; ");
+			}
 		}
-		System.out.println("\nTotal centrality value:\t" + c.zSum());
+		out.flush();
+		System.out.println("\nTotal centrality value:\t" + sum);
+		System.out.println("Sparse solver " + (solver.hasConverged() ? "converged" : "did not converge") + " after " + solver.getIterations() + " iterations, residual " + solver.getResidual());
+		return c;
+	}
+
+	// c = (I-A)^{-1} A val with the sparse solver
+	public double[] centrality(GraphSnapshot adj, SparseSolver solver) {
+		return solver.solve(solver.multiply(adj.copyValues()));
 	}
 }
@@ -0,0 +1,82 @@
+package ch.uzh.bf;
+
+import java.util.Arrays;
+
+public class LongIntMap {
+
+	/*
+	 * Map from long keys to int values with open addressing (linear probing)
+	 * on two primitive arrays, no per-entry objects
+	 */
+	private static final int missing = -1;
+
+	private long[] keys;
+	private int[] vals;              // vals[slot] = value of keys[slot], missing if empty
+	private int size;
+	private int mask;
+
+	public LongIntMap(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+		keys = new long[capacity];
+		vals = new int[capacity];
+		Arrays.fill(vals, missing);
+		mask = capacity - 1;
+	}
+
+	// Value of key, or -1 if absent
+	public int get(long key) {
+		int slot = slot(key);
+		while (vals[slot] != missing) {
+			if (keys[slot] == key) {
+				return vals[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return missing;
+	}
+
+	// Values must be non-negative
+	public void put(long key, int value) {
+		int slot = slot(key);
+		while (vals[slot] != missing) {
+			if (keys[slot] == key) {
+				vals[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		vals[slot] = value;
+		if (++size * 2 > keys.length) {
+			rehash();
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void rehash() {
+		long[] oldKeys = keys;
+		int[] oldVals = vals;
+		keys = new long[oldKeys.length * 2];
+		vals = new int[oldVals.length * 2];
+		Arrays.fill(vals, missing);
+		mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldVals[i] != missing) {
+				int slot = slot(oldKeys[i]);
+				while (vals[slot] != missing) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				vals[slot] = oldVals[i];
+			}
+		}
+	}
+}
@@ -19,6 +19,9 @@
 
 package ch.uzh.bf;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 
@@ -36,45 +39,305 @@ public class Main {
 	// Instance method
 	public void Run() {
 		cfg = new DynamicConfig();
+		Metrics.reset();
+		Metrics.setEvents(cfg.metrics);
+		// A missing snapshot file is written straight from an edge list or the generator;
+		// the sample network is written from the Neo4j store during the run below
+		boolean snapshotExists = cfg.snapshotFile != null && new File(cfg.snapshotFile).exists();
+		if (snapshotExists || cfg.snapshotFile != null && (cfg.edgeFile != null || cfg.generateNodes > 0)) {
+			if (!snapshotExists) {
+				createSnapshot();
+			}
+			RunSnapshot();
+			return;
+		}
 		neo = new MyNeo4j(cfg);
 
 		// Neo4j infrastructure
 		neo.startup();
 
-		// Create sample bowtie network
+		// Create sample bowtie network, load from file or generate
 		neo.dropDatabase();
-		neo.create();
+		if (cfg.edgeFile != null) {
+			neo.load();
+		}
+		else if (cfg.generateNodes > 0) {
+			neo.generate();
+		}
+		else {
+			neo.create();
+		}
+		if (cfg.snapshotFile != null) {
+			neo.writeSnapshot();
+		}
 
 		// Find bowtie components
 		neo.bowtie();
+		if (cfg.multiBowtieMinSize > 0) {
+			neo.multiBowtie();
+		}
 
 		// Basic Neo4j stuff
-		neo.listAllNodesAndRels();
-		Node start = neo.getNodeByName("i1");
-		Node end = neo.getNodeByName("o6");
-		neo.shortestPath(start, end);
-		neo.listBowtieComponent("SCC");
+		if (cfg.edgeFile == null && cfg.generateNodes == 0) {
+			if (cfg.printNodes) {
+				neo.listAllNodesAndRels();
+			}
+			Node start = neo.getNodeByName("i1");
+			Node end = neo.getNodeByName("o6");
+			neo.shortestPath(start, end);
+		}
+		if (cfg.printNodes) {
+			neo.listBowtieComponent("SCC");
+		}
 
 		// Influence Index
 		neo.influenceIndex();
+		if (cfg.topK > 0) {
+			neo.topInfluenceIndex();
+		}
+		if (cfg.updateFile != null) {
+			neo.updateInfluenceIndex();
+			neo.bowtie();
+		}
 		neo.analyticalComputation();
-		neo.reset();
+
+		// Per-node results to file, written while the cumulative runs go on
+		if (cfg.exportFile != null) {
+			neo.exportResults();
+		}
+
+		// Batch of source/target pair queries
+		if (cfg.pathQueriesFile != null) {
+			neo.pathQueries();
+		}
 
 		// Cumulative Influence Index
 		cfg.cumulativeInfluenceIndex = true;
 		neo.computeCumulativeInfluenceIndex();
-		neo.reset();
+		neo.computeCumulativeTargets();
+
+		// Results for later runs
+		if (cfg.resultCache) {
+			neo.saveResults();
+		}
+		neo.finishExport();
+
+		// Counters and timings of all stages
+		if (cfg.metrics) {
+			Metrics.report();
+		}
 
 		//
 		neo.shutdown();
 	}
 
+	// Load, generate or build the sample network straight into a snapshot file,
+	// without Neo4j
+	public void createSnapshot() {
+		GraphSnapshot snap;
+		try {
+			if (cfg.edgeFile != null) {
+				snap = EdgeListLoader.fromFiles(cfg.edgeFile, cfg.valueFile, cfg.fileHeader).toSnapshot();
+			}
+			else if (cfg.generateNodes > 0) {
+				EdgeListLoader loader = new EdgeListLoader(',', false);
+				new NetworkGenerator(cfg.generateNodes, cfg.generateSeed).generate(loader);
+				snap = loader.toSnapshot();
+			}
+			else {
+				MyBowtieNetwork nw = new MyBowtieNetwork();
+				nw.number();
+				snap = nw.getAdjacency();
+			}
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not load " + cfg.edgeFile, e);
+		}
+		try {
+			SnapshotFile.write(snap, cfg.snapshotFile);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not write " + cfg.snapshotFile, e);
+		}
+	}
+
+	// Run on a binary snapshot file, without Neo4j
+	public void RunSnapshot() {
+		Metrics.setEvents(cfg.metrics);
+		GraphSnapshot snap;
+		try {
+			snap = SnapshotFile.read(cfg.snapshotFile);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not read " + cfg.snapshotFile, e);
+		}
+
+		// Results of an earlier run on the same graph
+		ResultCache cache = cfg.resultCache ? ResultCache.open(cfg.snapshotFile + ".results", snap, cfg) : null;
+
+		// Find bowtie components
+		SnapshotBowtie bt = new SnapshotBowtie(snap, cfg.threads);
+		if (cache != null && cache.hasBowtie()) {
+			bt.restore(cache.getComponentIds(), cache.getNumComponents(), cache.getClasses());
+		}
+		else {
+			bt.run();
+			if (cache != null) {
+				cache.setBowtie(bt.getComponentIds(), bt.getNumComponents(), bt.getClasses());
+			}
+		}
+		if (cfg.multiBowtieMinSize > 0) {
+			MultiBowtie multi = new MultiBowtie(snap, bt.getComponentIds(), bt.getNumComponents(), cfg.threads);
+			multi.run(cfg.multiBowtieMinSize);
+			multi.evaluate(cfg.printNodes);
+		}
+
+		// Influence Index
+		SnapshotInfluenceIndex ii = new SnapshotInfluenceIndex(cfg, snap);
+		if (cache != null && cache.hasInfluenceIndex()) {
+			ii.restore(cache.getInfluenceIndex(), cache.getErrorBound());
+		}
+		else {
+			if (cfg.condensation) {
+				ii.setComponents(bt.getComponentIds(), bt.getNumComponents());
+			}
+			ii.wrapper();
+			if (cache != null) {
+				cache.setInfluenceIndex(ii.getInfluenceIndex(), ii.getErrorBound());
+			}
+		}
+		ii.evaluate();
+		if (cfg.topK > 0) {
+			ii.evaluateTopK(ii.topK(cfg.topK));
+		}
+
+		// Incremental update, bowtie again on the changed network
+		if (cfg.updateFile != null) {
+			GraphUpdate changes;
+			try {
+				changes = GraphUpdate.load(cfg.updateFile, cfg.fileHeader, snap);
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Could not read " + cfg.updateFile, e);
+			}
+			snap = changes.applyTo(snap);
+			SnapshotInfluenceIndex next = new SnapshotInfluenceIndex(cfg, snap);
+			next.update(ii, changes);
+			next.evaluate();
+			bt = new SnapshotBowtie(snap, cfg.threads);
+			bt.run();
+			ii = next;
+		}
+
+		// Per-node results to file, written while the cumulative runs go on
+		ResultExport export = null;
+		if (cfg.exportFile != null) {
+			export = new ResultExport(cfg.exportFile, snap);
+			export.setBowtie(bt.getClasses());
+			export.setInfluenceIndex(ii.getInfluenceIndex(), ii.getErrorBound());
+			export.start();
+		}
+
+		// Batch of source/target pair queries
+		if (cfg.pathQueriesFile != null) {
+			int[][] pairs;
+			try {
+				pairs = PathQueries.load(cfg.pathQueriesFile, cfg.fileHeader, snap);
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Could not read " + cfg.pathQueriesFile, e);
+			}
+			new PathQueries(snap, cfg.threads, cfg.pathMaxLength, cfg.pathMaxPaths).evaluate(pairs[0], pairs[1], cfg.printNodes);
+		}
+
+		// Cumulative Influence Index
+		// The cache holds the results of the graph as read, not after an update
+		cfg.cumulativeInfluenceIndex = true;
+		ii = new SnapshotInfluenceIndex(cfg, snap);
+		ii.tag(bt.getClasses());
+		if (cache != null && cfg.updateFile == null && cache.hasCumulative()) {
+			ii.restore(cache.getCumulative(), cache.getCumulativeError());
+		}
+		else {
+			if (cfg.condensation) {
+				ii.setComponents(bt.getComponentIds(), bt.getNumComponents());
+			}
+			ii.wrapper();
+			if (cache != null && cfg.updateFile == null) {
+				cache.setCumulative(ii.getInfluenceIndex(), ii.getErrorBound());
+			}
+		}
+		ii.evaluateCumulative();
+
+		// Many target sets
+		TargetSets sets;
+		try {
+			sets = cfg.cumulativeTargetsFile != null ? TargetSets.load(cfg.cumulativeTargetsFile, cfg.fileHeader, snap) : TargetSets.fromBowtie(bt.getClasses());
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not read " + cfg.cumulativeTargetsFile, e);
+		}
+		ii = new SnapshotInfluenceIndex(cfg, snap);
+		ii.cumulative(sets);
+		ii.evaluateTargets(sets);
+
+		if (export != null) {
+			try {
+				export.finish();
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Could not write " + cfg.exportFile, e);
+			}
+		}
+
+		// Keep the results for the next run
+		if (cache != null) {
+			try {
+				cache.save();
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Could not write " + cfg.snapshotFile + ".results", e);
+			}
+		}
+
+		// Counters and timings of all stages
+		if (cfg.metrics) {
+			Metrics.report();
+		}
+	}
+
 	// *** Inner class for dynamic config
 	public class DynamicConfig {
 		
 		public String dbPath;
+		public String edgeFile;
+		public String valueFile;
+		public String snapshotFile;
+		public int generateNodes;
+		public long generateSeed;
+		public boolean fileHeader;
 		public boolean cumulativeInfluenceIndex;
+		public boolean inMemory;
+		public int threads;
+		public double epsilon;
+		public int maxDepth;
+		public boolean condensation;
+		public boolean sparseSolver;
+		public double solverTolerance;
+		public int solverMaxIterations;
+		public int batchSize;
 		public String cumulativeTarget;
+		public String cumulativeTargetsFile;
+		public String updateFile;
+		public int topK;
+		public boolean metrics;
+		public boolean resultCache;
+		public String exportFile;
+		public boolean printNodes;
+		public String pathQueriesFile;
+		public int pathMaxLength;
+		public int pathMaxPaths;
+		public int multiBowtieMinSize;
 		public  Direction out;
 
 		public DynamicConfig () {
@@ -82,12 +345,98 @@ public class Main {
 			// ### Set this to where you want the database to be located at
 			dbPath = "/home/username/sw/neo4j-community/data/graph.db";
 
+			// Network:
+			// Set edgeFile (source, target, weight per line, .csv or .tsv) and optionally
+			// valueFile (node, value) to load a network instead of the sample bowtie;
+			// nodes are non-negative integer keys of up to 18 digits
+			edgeFile = null;
+			valueFile = null;
+			fileHeader = false;
+			// Set generateNodes to run on a synthetic bowtie network of that size
+			// instead (see NetworkGenerator), the same seed gives the same network
+			generateNodes = 0;
+			generateSeed = 1;
+			// Set snapshotFile to run on a memory-mapped binary snapshot without Neo4j;
+			// if the file does not exist, the network above is written to it first
+			// (the sample network from the Neo4j store, in a regular Neo4j run)
+			snapshotFile = null;
+
 			// Relations
 			out = Direction.OUTGOING;
+
+			// Influence Index:
+			// Compute on an in-memory snapshot of the graph; set to false to
+			// crawl the Neo4j store directly (reference implementation)
+			inMemory = true;
+			// Number of worker threads for the in-memory computation (1 = serial)
+			threads = Runtime.getRuntime().availableProcessors();
+			// Prune trails once the indirect weight drops below epsilon or the
+			// trail is longer than maxDepth (0 = exact, no pruning)
+			epsilon = 0.0;
+			maxDepth = 0;
+			// Bowtie analysis:
+			// IN and OUT of every SCC with at least this many nodes, not just the
+			// largest one (0 = off, see MultiBowtie); 1 counts as 2, since single
+			// nodes are not taken as cores
+			multiBowtieMinSize = 0;
+
+			// Reuse downstream results on the SCC condensation (needs bowtie analysis first)
+			condensation = true;
+			// Set updateFile to apply a batch of changes after the first run and only
+			// recompute the affected nodes (insert/delete/weight/value per line, see GraphUpdate)
+			updateFile = null;
+			// Rank the top k nodes, scoring only nodes whose walk bound can make it (0 = off).
+			// Exact scores enumerate all simple paths unless the SCC condensation or pruning
+			// applies (see SnapshotInfluenceIndex.topK())
+			topK = 0;
+
+			// Analytical computation:
+			// Iterative sparse solver; set to false for the dense Colt inverse (reference).
+			// Tolerance and iterations also apply to the walk sums behind the error
+			// bound of the pruning and the top-k bounds
+			sparseSolver = true;
+			solverTolerance = 1e-12;
+			solverMaxIterations = 10000;
+
+			// Path queries:
+			// Set pathQueriesFile to answer shortest path, all shortest paths, reachability
+			// and max weight path for each (source, target node name) pair in the file at once
+			pathQueriesFile = null;
+			// Longest shortest path searched for, most shortest paths listed per pair
+			pathMaxLength = 100;
+			pathMaxPaths = 100;
+
+			// Property updates per committed transaction, at least 1
+			batchSize = 10000;
+
+			// Keep bowtie, Influence Index and cumulative results in a sidecar file next
+			// to the input (<snapshot, edge file or dbPath>.results) and reuse them while
+			// the graph and the settings they depend on are unchanged
+			resultCache = true;
+
+			// Set exportFile to write id, name, bowtie class, Influence Index and centrality
+			// of every node to a .csv or .tsv file, or to a columnar binary file for
+			// any other name (see ResultExport)
+			exportFile = null;
+			// List the nodes with their values on the console, for small networks only;
+			// totals and the run summary of metrics are printed either way
+			printNodes = false;
+
+			// Count edges, paths, depths and time per source node of every traversal
+			// and print a summary of all stages at the end of the run; also emitted as
+			// JFR events while a flight recording is running (see Metrics)
+			metrics = true;
 			
 			// Cumulative Influence Index:
 			// Set to IN section of bowtie
 			cumulativeTarget = StaticConfig.BowTie.IN.toString();
+			// Many target sets in one sweep: all bowtie components, or the sets in
+			// cumulativeTargetsFile if set (set, node name per line, .csv or .tsv)
+			cumulativeTargetsFile = null;
+
+			if (batchSize < 1) {
+				throw new IllegalArgumentException("batchSize must be at least 1, found " + batchSize);
+			}
 		}
 	}
 }
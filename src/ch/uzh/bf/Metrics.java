@@ -0,0 +1,333 @@
+package ch.uzh.bf;
+
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+public final class Metrics {
+
+	/*
+	 * Counters and histograms of a run, printed as one summary by report().
+	 * Traversals count into a per-thread Probe: the DFS loops keep their counts in
+	 * local variables, hand them to the probe once per source, and the probe is
+	 * added to the shared Traversal of its stage once per worker. A clock read costs
+	 * about as much as a small crawl, so only one in sampleRate sources is timed; all
+	 * counts are exact. Names are stage.metric, e.g. bowtie.scc
+	 * The same data goes to Java Flight Recorder (jdk.jfr, Java 8u262 and later) as
+	 * one SourceEvent per traversed source and one StageEvent per stage, if the run
+	 * has metrics on (setEvents()) and a recording enables them, e.g.
+	 *   java -XX:StartFlightRecording=filename=run.jfr ...
+	 * Without a recording an event costs one flag check
+	 */
+	private static final int sampleRate = 16;
+	private static final EventType sourceEvents = EventType.getEventType(SourceEvent.class);
+	private static final EventType stageEvents = EventType.getEventType(StageEvent.class);
+	private static volatile boolean events;
+
+	private static final ConcurrentMap<String, AtomicLong> counters = new ConcurrentSkipListMap<String, AtomicLong>();
+	private static final ConcurrentMap<String, Histogram> timers = new ConcurrentSkipListMap<String, Histogram>();
+	private static final ConcurrentMap<String, Traversal> traversals = new ConcurrentSkipListMap<String, Traversal>();
+
+	private Metrics() {}
+
+	// *** Registry
+	public static void count(String name, long delta) {
+		AtomicLong c = counters.get(name);
+		if (c == null) {
+			counters.putIfAbsent(name, new AtomicLong());
+			c = counters.get(name);
+		}
+		c.addAndGet(delta);
+	}
+
+	// Wall time of a stage since start (System.nanoTime())
+	public static void time(String name, long start) {
+		Histogram h = timers.get(name);
+		if (h == null) {
+			timers.putIfAbsent(name, new Histogram());
+			h = timers.get(name);
+		}
+		long elapsed = System.nanoTime() - start;
+		synchronized (h) {
+			h.record(elapsed);
+		}
+		if (events && stageEvents.isEnabled()) {
+			StageEvent event = new StageEvent();
+			event.stage = name;
+			event.time = elapsed;
+			event.commit();
+		}
+	}
+
+	// JFR events on or off, set from DynamicConfig.metrics
+	public static void setEvents(boolean on) {
+		events = on;
+	}
+
+	public static Traversal traversal(String stage) {
+		Traversal t = traversals.get(stage);
+		if (t == null) {
+			traversals.putIfAbsent(stage, new Traversal());
+			t = traversals.get(stage);
+		}
+		return t;
+	}
+
+	public static long getCount(String name) {
+		AtomicLong c = counters.get(name);
+		return c == null ? 0 : c.get();
+	}
+
+	public static void reset() {
+		counters.clear();
+		timers.clear();
+		traversals.clear();
+	}
+
+	// *** Output results to console
+	public static void report() {
+		System.out.println("\n### Run summary");
+		DecimalFormat f = new DecimalFormat("###.##");
+		for (Map.Entry<String, Traversal> e : traversals.entrySet()) {
+			Traversal t = e.getValue();
+			synchronized (t) {
+				System.out.println("Traversal " + e.getKey() + ": " + t.sources + " sources, " + t.edges + " edges expanded, " + t.paths + " paths, depth mean "
+						+ f.format(t.paths > 0 ? (double) t.depthSum / t.paths : 0.0) + " max " + t.maxDepth.max + ", " + t.cycleCutoffs + " cycle cutoffs, "
+						+ t.targetCutoffs + " target cutoffs, " + t.prunedBranches + " pruned branches");
+				System.out.println("\ttime per source (us, 1 in " + sampleRate + "):\t" + t.time.toString(1e3, f));
+				System.out.println("\tpaths per source:\t" + t.pathsPerSource.toString(1.0, f));
+			}
+		}
+		for (Map.Entry<String, Histogram> e : timers.entrySet()) {
+			Histogram h = e.getValue();
+			synchronized (h) {
+				System.out.println("Stage " + e.getKey() + " (ms):\t" + (h.count == 1 ? f.format(h.sum / 1e6) : h.toString(1e6, f)));
+			}
+		}
+		for (Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+			System.out.println(e.getKey() + "\t" + e.getValue().get());
+		}
+	}
+
+	// *** Histogram with power of two buckets: bucket b holds values in [2^(b-1), 2^b)
+	// and bucket 0 the zeros, so percentiles are upper bounds within a factor 2.
+	// Not thread safe, shared instances are only touched under their lock
+	public static final class Histogram {
+		private final long[] buckets = new long[64];
+		private long count;
+		private long sum;
+		private long max;
+
+		public void record(long x) {
+			buckets[64 - Long.numberOfLeadingZeros(Math.max(0, x))]++;
+			count++;
+			sum += x;
+			if (x > max) {
+				max = x;
+			}
+		}
+
+		void add(Histogram other) {
+			for (int b = 0; b < buckets.length; b++) {
+				buckets[b] += other.buckets[b];
+			}
+			count += other.count;
+			sum += other.sum;
+			max = Math.max(max, other.max);
+		}
+
+		void clear() {
+			Arrays.fill(buckets, 0);
+			count = 0;
+			sum = 0;
+			max = 0;
+		}
+
+		// Upper bound of the q-quantile
+		public long quantile(double q) {
+			long rank = (long) Math.ceil(q * count);
+			long seen = 0;
+			for (int b = 0; b < buckets.length; b++) {
+				seen += buckets[b];
+				if (seen >= rank && seen > 0) {
+					return b == 0 ? 0 : Math.min(max, (1L << b) - 1);
+				}
+			}
+			return max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		String toString(double unit, DecimalFormat f) {
+			if (count == 0) {
+				return "none";
+			}
+			return "count " + count + " mean " + f.format(sum / unit / count) + " p50 " + f.format(quantile(0.5) / unit)
+					+ " p99 " + f.format(quantile(0.99) / unit) + " max " + f.format(max / unit);
+		}
+	}
+
+	// *** Totals of a traversal stage, summed over all sources and threads
+	public static final class Traversal {
+		private long sources;
+		private long edges;              // relationships taken off a trail cursor
+		private long paths;              // trails extended, i.e., simple paths enumerated
+		private long depthSum;           // sum of the depths of these paths
+		private long cycleCutoffs;       // successor already on the trail
+		private long targetCutoffs;      // successor is another target (cumulative)
+		private long prunedBranches;     // branches dropped by epsilon or max depth
+		private final Histogram time = new Histogram();           // ns per sampled source
+		private final Histogram maxDepth = new Histogram();       // deepest trail per source
+		private final Histogram pathsPerSource = new Histogram();
+
+		private void add(Traversal other) {
+			sources += other.sources;
+			edges += other.edges;
+			paths += other.paths;
+			depthSum += other.depthSum;
+			cycleCutoffs += other.cycleCutoffs;
+			targetCutoffs += other.targetCutoffs;
+			prunedBranches += other.prunedBranches;
+			time.add(other.time);
+			maxDepth.add(other.maxDepth);
+			pathsPerSource.add(other.pathsPerSource);
+		}
+
+		private void clear() {
+			sources = edges = paths = depthSum = cycleCutoffs = targetCutoffs = prunedBranches = 0;
+			time.clear();
+			maxDepth.clear();
+			pathsPerSource.clear();
+		}
+
+		public synchronized long getSources() {
+			return sources;
+		}
+
+		public synchronized long getEdges() {
+			return edges;
+		}
+
+		public synchronized long getPaths() {
+			return paths;
+		}
+	}
+
+	// *** Per-thread counts, filled in by a traversal for one source at a time
+	public static final class Probe {
+		public long edges;
+		public long paths;
+		public long depthSum;
+		public int maxDepth;
+		public long cycleCutoffs;
+		public long targetCutoffs;
+		public long prunedBranches;
+		private final Traversal local = new Traversal();
+		private long started;
+		private SourceEvent event;       // JFR event of the current source, while recording
+
+		// Start of a source, the clock is only read for sampled sources
+		public long startSource(String stage, long node) {
+			if (events && sourceEvents.isEnabled()) {
+				event = new SourceEvent();
+				event.stage = stage;
+				event.node = node;
+				event.begin();
+			}
+			return (++started & (sampleRate - 1)) == 0 ? System.nanoTime() : Long.MIN_VALUE;
+		}
+
+		// Close the current source that began at start
+		public void endSource(long start) {
+			local.sources++;
+			local.edges += edges;
+			local.paths += paths;
+			local.depthSum += depthSum;
+			local.cycleCutoffs += cycleCutoffs;
+			local.targetCutoffs += targetCutoffs;
+			local.prunedBranches += prunedBranches;
+			if (start != Long.MIN_VALUE) {
+				local.time.record(System.nanoTime() - start);
+			}
+			local.maxDepth.record(maxDepth);
+			local.pathsPerSource.record(paths);
+			if (event != null) {
+				event.edges = edges;
+				event.paths = paths;
+				event.maxDepth = maxDepth;
+				event.cycleCutoffs = cycleCutoffs;
+				event.targetCutoffs = targetCutoffs;
+				event.prunedBranches = prunedBranches;
+				event.commit();
+				event = null;
+			}
+			edges = paths = depthSum = cycleCutoffs = targetCutoffs = prunedBranches = 0;
+			maxDepth = 0;
+		}
+
+		// Hand the sources closed so far over to the shared totals of stage
+		public void flush(String stage) {
+			if (local.sources == 0) {
+				return;
+			}
+			Traversal shared = traversal(stage);
+			synchronized (shared) {
+				shared.add(local);
+			}
+			local.clear();
+		}
+	}
+
+	// *** JFR events
+	@Name("ch.uzh.bf.Source")
+	@Label("Traversal Source")
+	@Category({ "Influence Index", "Traversal" })
+	@StackTrace(false)
+	public static final class SourceEvent extends Event {
+		@Label("Stage")
+		String stage;
+		@Label("Node")
+		long node;               // dense id, Neo4j id in the reference crawl
+		@Label("Edges Expanded")
+		long edges;
+		@Label("Paths")
+		long paths;
+		@Label("Max Depth")
+		int maxDepth;
+		@Label("Cycle Cutoffs")
+		long cycleCutoffs;
+		@Label("Target Cutoffs")
+		long targetCutoffs;
+		@Label("Pruned Branches")
+		long prunedBranches;
+	}
+
+	@Name("ch.uzh.bf.Stage")
+	@Label("Stage")
+	@Category({ "Influence Index", "Stage" })
+	@StackTrace(false)
+	public static final class StageEvent extends Event {
+		@Label("Stage")
+		String stage;
+		@Label("Wall Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long time;
+	}
+}
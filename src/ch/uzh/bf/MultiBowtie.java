@@ -0,0 +1,322 @@
+package ch.uzh.bf;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MultiBowtie {
+
+	/*
+	 * IN and OUT of every SCC with at least minSize nodes (a core), not just the
+	 * largest one: IN are the nodes with a path into the core, OUT the nodes reached
+	 * from it. The searches run on the condensation of the graph, a DAG with one
+	 * node per SCC carrying its size and value and one relationship per connected
+	 * pair of SCCs, which is built once and shared by all cores. Reachability of 64
+	 * cores is propagated at once as bit masks along a topological order of the DAG,
+	 * so one sweep in each direction serves a whole word of cores. Words of cores
+	 * are handed out to the worker threads one at a time
+	 */
+	private GraphSnapshot snap;
+	private int[] component;         // component[v] = id of strong component containing v
+	private int numComponents;
+	private int threads;
+
+	// Condensation in CSR layout, relationships between SCCs only, no duplicates
+	private int[] compSize;          // compSize[c] = nodes in SCC c
+	private double[] compValue;      // compValue[c] = summed VALUE of SCC c
+	private int[] dagOffsets;        // dagOffsets[c]..dagOffsets[c+1]-1 = downstream SCCs of c
+	private int[] dagTargets;
+	private int[] dagInOffsets;      // dagInOffsets[c]..dagInOffsets[c+1]-1 = upstream SCCs of c
+	private int[] dagSources;
+	private int[] topological;       // SCCs ordered so that every relationship points forward
+
+	// Results, cores ranked by size
+	private int[] cores;             // cores[i] = SCC id of core i
+	private int[] inSize;            // inSize[i] = IN nodes of core i
+	private double[] inValue;
+	private int[] outSize;           // outSize[i] = OUT nodes of core i
+	private double[] outValue;
+
+	// Per-run worker state
+	private ThreadLocal<long[]> masks;
+
+	public MultiBowtie(GraphSnapshot snap, int[] component, int numComponents, int threads) {
+		this.snap = snap;
+		this.component = component;
+		this.numComponents = numComponents;
+		this.threads = Math.max(1, threads);
+	}
+
+	// Single nodes are never cores, so minSize is at least 2
+	public void run(int minSize) {
+		minSize = Math.max(2, minSize);
+		System.out.println("\n### Bowtie of every SCC with at least " + minSize + " nodes");
+		long start = System.nanoTime();
+		condense();
+		Metrics.time("bowtie.condense", start);
+
+		// Cores, largest first
+		int k = 0;
+		for (int c = 0; c < numComponents; c++) {
+			if (compSize[c] >= minSize) {
+				k++;
+			}
+		}
+		long[] bySize = new long[k];
+		k = 0;
+		for (int c = 0; c < numComponents; c++) {
+			if (compSize[c] >= minSize) {
+				bySize[k++] = ((long) -compSize[c] << 32) | c;
+			}
+		}
+		Arrays.sort(bySize);
+		cores = new int[k];
+		for (int i = 0; i < k; i++) {
+			cores[i] = (int) bySize[i];
+		}
+		inSize = new int[k];
+		inValue = new double[k];
+		outSize = new int[k];
+		outValue = new double[k];
+
+		start = System.nanoTime();
+		forEachWord(k);
+		Metrics.time("bowtie.multi", start);
+		Metrics.count("bowtie.cores", k);
+	}
+
+	// *** Condensation
+	// Relationships by counting sort on the source SCC, then duplicates removed per SCC
+	private void condense() {
+		int n = snap.getNumNodes();
+		IntBuffer offsets = snap.getOffsets();
+		IntBuffer targets = snap.getTargets();
+		DoubleBuffer values = snap.getValues();
+		compSize = new int[numComponents];
+		compValue = new double[numComponents];
+		for (int v = 0; v < n; v++) {
+			compSize[component[v]]++;
+			compValue[component[v]] += values.get(v);
+		}
+
+		int[] start = new int[numComponents + 1];
+		for (int v = 0; v < n; v++) {
+			for (int r = offsets.get(v); r < offsets.get(v + 1); r++) {
+				if (component[targets.get(r)] != component[v]) {
+					start[component[v] + 1]++;
+				}
+			}
+		}
+		for (int c = 0; c < numComponents; c++) {
+			start[c + 1] += start[c];
+		}
+		int[] fill = Arrays.copyOf(start, numComponents);
+		int[] adj = new int[start[numComponents]];
+		for (int v = 0; v < n; v++) {
+			for (int r = offsets.get(v); r < offsets.get(v + 1); r++) {
+				int d = component[targets.get(r)];
+				if (d != component[v]) {
+					adj[fill[component[v]]++] = d;
+				}
+			}
+		}
+		dagOffsets = new int[numComponents + 1];
+		int m = 0;
+		for (int c = 0; c < numComponents; c++) {
+			Arrays.sort(adj, start[c], start[c + 1]);
+			for (int r = start[c]; r < start[c + 1]; r++) {
+				if (r == start[c] || adj[r] != adj[r - 1]) {
+					adj[m++] = adj[r];
+				}
+			}
+			dagOffsets[c + 1] = m;
+		}
+		dagTargets = Arrays.copyOf(adj, m);
+
+		// Upstream SCCs
+		dagInOffsets = new int[numComponents + 1];
+		for (int r = 0; r < m; r++) {
+			dagInOffsets[dagTargets[r] + 1]++;
+		}
+		for (int c = 0; c < numComponents; c++) {
+			dagInOffsets[c + 1] += dagInOffsets[c];
+		}
+		fill = Arrays.copyOf(dagInOffsets, numComponents);
+		dagSources = new int[m];
+		for (int c = 0; c < numComponents; c++) {
+			for (int r = dagOffsets[c]; r < dagOffsets[c + 1]; r++) {
+				dagSources[fill[dagTargets[r]]++] = c;
+			}
+		}
+
+		// Topological order, sources first
+		topological = new int[numComponents];
+		int[] pending = new int[numComponents];
+		int tail = 0;
+		for (int c = 0; c < numComponents; c++) {
+			pending[c] = dagInOffsets[c + 1] - dagInOffsets[c];
+			if (pending[c] == 0) {
+				topological[tail++] = c;
+			}
+		}
+		for (int head = 0; head < tail; head++) {
+			int c = topological[head];
+			for (int r = dagOffsets[c]; r < dagOffsets[c + 1]; r++) {
+				if (--pending[dagTargets[r]] == 0) {
+					topological[tail++] = dagTargets[r];
+				}
+			}
+		}
+		System.out.println("Condensation with " + numComponents + " SCCs and " + m + " rels");
+	}
+
+	// *** Searches, words of 64 cores over the workers
+	private void forEachWord(int k) {
+		final int words = (k + 63) / 64;
+		masks = new ThreadLocal<long[]>() {
+			protected long[] initialValue() {
+				return new long[numComponents];
+			}
+		};
+		if (threads <= 1 || words < 2) {
+			for (int w = 0; w < words; w++) {
+				sweep(w);
+			}
+			masks = null;
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, words));
+		final AtomicInteger next = new AtomicInteger(0);
+		try {
+			List<Future<Void>> workers = new ArrayList<Future<Void>>();
+			for (int t = 0; t < Math.min(threads, words); t++) {
+				workers.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						int w;
+						while ((w = next.getAndIncrement()) < words) {
+							sweep(w);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> worker : workers) {
+				worker.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Multi bowtie interrupted", e);
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException("Multi bowtie failed", e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+			masks = null;
+		}
+	}
+
+	// Cores 64w..64w+63, bit j of mask[c] = SCC c reaches (IN) or is reached
+	// from (OUT) core 64w+j
+	private void sweep(int w) {
+		long[] mask = masks.get();
+		int first = 64 * w;
+		int last = Math.min(first + 64, cores.length);
+
+		// OUT, downstream along the topological order
+		Arrays.fill(mask, 0L);
+		for (int i = first; i < last; i++) {
+			mask[cores[i]] = 1L << (i - first);
+		}
+		for (int t = 0; t < numComponents; t++) {
+			int c = topological[t];
+			long bits = mask[c];
+			for (int r = dagInOffsets[c]; r < dagInOffsets[c + 1]; r++) {
+				bits |= mask[dagSources[r]];
+			}
+			mask[c] = bits;
+		}
+		collect(mask, first, last, outSize, outValue);
+
+		// IN, upstream along the reverse order
+		Arrays.fill(mask, 0L);
+		for (int i = first; i < last; i++) {
+			mask[cores[i]] = 1L << (i - first);
+		}
+		for (int t = numComponents - 1; t >= 0; t--) {
+			int c = topological[t];
+			long bits = mask[c];
+			for (int r = dagOffsets[c]; r < dagOffsets[c + 1]; r++) {
+				bits |= mask[dagTargets[r]];
+			}
+			mask[c] = bits;
+		}
+		collect(mask, first, last, inSize, inValue);
+	}
+
+	// Size and value of the SCCs marked for each core, without the core itself
+	private void collect(long[] mask, int first, int last, int[] size, double[] value) {
+		for (int i = first; i < last; i++) {
+			mask[cores[i]] &= ~(1L << (i - first));
+		}
+		for (int c = 0; c < numComponents; c++) {
+			long bits = mask[c];
+			while (bits != 0L) {
+				int i = first + Long.numberOfTrailingZeros(bits);
+				size[i] += compSize[c];
+				value[i] += compValue[c];
+				bits &= bits - 1;
+			}
+		}
+	}
+
+	// *** Output results to console
+	// All cores if printAll, else the ten largest
+	public void evaluate(boolean printAll) {
+		System.out.println(cores.length + " SCC(s), ranked by size");
+		PrintStream out = ResultExport.console();
+		int[] first = new int[numComponents];
+		Arrays.fill(first, -1);
+		for (int v = snap.getNumNodes() - 1; v >= 0; v--) {
+			first[component[v]] = v;
+		}
+		int shown = printAll ? cores.length : Math.min(10, cores.length);
+		for (int i = 0; i < shown; i++) {
+			int c = cores[i];
+			out.println((i + 1) + ".\tSCC of " + compSize[c] + " nodes (" + snap.getName(first[c]) + ", ...)\tval " + compValue[c]
+					+ "\tIN " + inSize[i] + " val " + inValue[i] + "\tOUT " + outSize[i] + " val " + outValue[i]);
+		}
+		out.flush();
+	}
+
+	// Getters
+	public int[] getCores() {
+		return cores;
+	}
+
+	public int[] getInSize() {
+		return inSize;
+	}
+
+	public double[] getInValue() {
+		return inValue;
+	}
+
+	public int[] getOutSize() {
+		return outSize;
+	}
+
+	public double[] getOutValue() {
+		return outValue;
+	}
+}
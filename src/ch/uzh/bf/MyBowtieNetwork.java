@@ -1,7 +1,5 @@
 package ch.uzh.bf;
 
-import java.util.HashMap;
-
 // Neo4j Version 2.2.5
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -14,8 +12,8 @@ import cern.colt.matrix.impl.SparseDoubleMatrix2D;
 
 public class MyBowtieNetwork {
 
-	private HashMap<Integer, Integer> nameToId;
-	private HashMap<Integer, Integer> idToName;
+	private int[] nameToId;          // nameToId[name] = Neo4j id of node with (numeric) name
+	private int[] idToName;          // idToName[id] = (numeric) name of node with Neo4j id
 
 	private int numNodes;
 
@@ -25,12 +23,11 @@ public class MyBowtieNetwork {
 
 	public void build() {
 		Transaction trs = MyNeo4j.gdbs.beginTx();
-		nameToId  = new HashMap<Integer, Integer>();
-		idToName  = new HashMap<Integer, Integer>();
-
 		try {
 			// Create nodes
 			numNodes = myVals.length;
+			nameToId = new int[numNodes + 1];
+			int maxId = 0;
 			for (int i = 0; i < numNodes; i++) {
 				Node n = null;
 				n = MyNeo4j.gdbs.createNode(StaticConfig.NodeLabel.MYNODE);
@@ -41,10 +38,12 @@ public class MyBowtieNetwork {
 				n.setProperty(StaticConfig.nodeName, sName);
 				n.setProperty(StaticConfig.nodeValue, myVals[i]);
 				n.setProperty(StaticConfig.nodeInfluenceIndex, 0.0);
-				n.setProperty(StaticConfig.nodeSwitch, StaticConfig.NodeSwitch.OFF.toString());
-				n.setProperty(StaticConfig.nodeTag, StaticConfig.NodeTag.NO.toString());
-				nameToId.put(name, id);
-				idToName.put(id, name);
+				nameToId[name] = id;
+				maxId = Math.max(maxId, id);
+			}
+			idToName = new int[maxId + 1];
+			for (int name = 1; name <= numNodes; name++) {
+				idToName[nameToId[name]] = name;
 			}
 
 			// Create rels
@@ -52,8 +51,8 @@ public class MyBowtieNetwork {
 				int from = (int) myRels[row][0];
 				int to = (int) myRels[row][1];
 				double w = myRels[row][2];
-				Node one = MyNeo4j.gdbs.getNodeById(nameToId.get(from));
-				Node two = MyNeo4j.gdbs.getNodeById(nameToId.get(to));
+				Node one = MyNeo4j.gdbs.getNodeById(nameToId[from]);
+				Node two = MyNeo4j.gdbs.getNodeById(nameToId[to]);
 				Relationship rel = one.createRelationshipTo(two, StaticConfig.relType);
 				rel.setProperty(StaticConfig.weight, w);
 			}
@@ -65,6 +64,17 @@ public class MyBowtieNetwork {
 		}
 	}
 
+	// Dense ids name-1 instead of Neo4j ids, for getAdjacency() without build()
+	public void number() {
+		numNodes = myVals.length;
+		nameToId = new int[numNodes + 1];
+		idToName = new int[numNodes];
+		for (int name = 1; name <= numNodes; name++) {
+			nameToId[name] = name - 1;
+			idToName[name - 1] = name;
+		}
+	}
+
 	private double[] myVals = {1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0};
 	private double[][] myRels = {
 			//{start, end, weight}
@@ -129,11 +139,11 @@ public class MyBowtieNetwork {
 	}
 	
 	// Getters
-	public HashMap<Integer, Integer> nameToId() {
+	public int[] nameToId() {
 		return nameToId;
 	}
 	
-	public HashMap<Integer, Integer> getIdToName() {
+	public int[] getIdToName() {
 		return idToName;
 	}
 	
@@ -146,16 +156,51 @@ public class MyBowtieNetwork {
 	public DoubleMatrix2D getAdjMatrix() {
 		if (myRels == null)
 			return null;
-		int row = myRels.length;
-		double[][] myAdj = new double[numNodes][numNodes];
-		for (int i=0; i<row; i++) {
+		DoubleMatrix2D ad = new SparseDoubleMatrix2D(idToName.length, idToName.length);
+		for (int i = 0; i < myRels.length; i++) {
 			if (myRels[i][2] > 0.0) {
-				int myI = nameToId.get((int)myRels[i][0]);
-				int myJ = nameToId.get((int)myRels[i][1]);
-				myAdj[myI][myJ] = myRels[i][2];
+				ad.setQuick(nameToId[(int) myRels[i][0]], nameToId[(int) myRels[i][1]], myRels[i][2]);
 			}
 		}
-		DoubleMatrix2D ad = new SparseDoubleMatrix2D(myAdj);
 		return ad;
 	}
+
+	// Adjacency matrix and value vector in CSR layout, built straight from the
+	// relationship list in two passes (count, fill). Rows are indexed by Neo4j id
+	// (or dense id after number()), names are the NAMEs of the nodes
+	public GraphSnapshot getAdjacency() {
+		if (myRels == null)
+			return null;
+		int n = idToName.length;
+		int[] offsets = new int[n + 1];
+		for (int i = 0; i < myRels.length; i++) {
+			if (myRels[i][2] > 0.0) {
+				offsets[nameToId[(int) myRels[i][0]] + 1]++;
+			}
+		}
+		for (int v = 0; v < n; v++) {
+			offsets[v + 1] += offsets[v];
+		}
+		int[] fill = offsets.clone();
+		int[] targets = new int[offsets[n]];
+		double[] weights = new double[offsets[n]];
+		for (int i = 0; i < myRels.length; i++) {
+			if (myRels[i][2] > 0.0) {
+				int r = fill[nameToId[(int) myRels[i][0]]]++;
+				targets[r] = nameToId[(int) myRels[i][1]];
+				weights[r] = myRels[i][2];
+			}
+		}
+		double[] values = new double[n];
+		long[] nodeIds = new long[n];
+		String[] names = new String[n];
+		for (int v = 0; v < n; v++) {
+			nodeIds[v] = v;
+		}
+		for (int name = 1; name <= numNodes; name++) {
+			values[nameToId[name]] = myVals[name - 1];
+			names[nameToId[name]] = customLabels(name);
+		}
+		return new GraphSnapshot(offsets, targets, weights, values, nodeIds, names);
+	}
 }
@@ -1,6 +1,8 @@
 package ch.uzh.bf;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.LongBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 
@@ -33,6 +35,19 @@ public class MyNeo4j {
 
 	private DynamicConfig cfg;
 	private MyBowtieNetwork nw;
+	private DetectBowtie bt;
+	private GraphSnapshot adjacency;
+	private GraphSnapshot snapshot;            // current graph, read from Neo4j once per version
+	private SnapshotInfluenceIndex lastIndex;  // last in-memory Influence Index, for updates and top-k
+
+	// Results of the graph as loaded, indexed like snapshot()
+	private ResultCache results;
+	private boolean graphChanged;              // updated since loading, results no longer apply
+	private int[] component;                   // SCC ids from the results, if bt is not run
+	private int numComponents;
+
+	private double[] centrality;                // analytical centrality, indexed like adjacency
+	private ResultExport export;
 
 	public MyNeo4j(DynamicConfig cfg){
 		this.cfg = cfg;
@@ -42,6 +57,37 @@ public class MyNeo4j {
 	public void create() {
 		nw = new MyBowtieNetwork();
 		nw.build();
+		adjacency = nw.getAdjacency();
+		snapshot = null;
+		lastIndex = null;
+	}
+
+	// Load edge list (and node values) from file
+	public void load() {
+		EdgeListLoader loader = new EdgeListLoader(EdgeListLoader.delimiterOf(cfg.edgeFile), cfg.fileHeader);
+		try {
+			if (cfg.valueFile != null) {
+				loader.loadValues(cfg.valueFile);
+			}
+			loader.loadEdges(cfg.edgeFile);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not load " + cfg.edgeFile, e);
+		}
+		loader.toNeo4j(cfg.batchSize);
+		adjacency = loader.toSnapshot();
+		snapshot = null;
+		lastIndex = null;
+	}
+
+	// Generate a synthetic bowtie network
+	public void generate() {
+		EdgeListLoader loader = new EdgeListLoader(',', false);
+		new NetworkGenerator(cfg.generateNodes, cfg.generateSeed).generate(loader);
+		loader.toNeo4j(cfg.batchSize);
+		adjacency = loader.toSnapshot();
+		snapshot = null;
+		lastIndex = null;
 	}
 
 	// Simple stuff
@@ -64,18 +110,16 @@ public class MyNeo4j {
 		}
 	}
 
+	// Node by NAME from the in-memory name dictionary, null if there is none
 	public Node getNodeByName(String name) {
 		Node node = null;
 		Transaction tx = gdbs.beginTx();
 		try{
-			ReadableIndex<Node> autoNodeIndex = gdbs.index().getNodeAutoIndexer().getAutoIndex();
-			try {
-				node = autoNodeIndex.get(StaticConfig.nodeName, name).getSingle();
-			}
-			catch (Exception e) {
-				System.out.println(e.getMessage());
+			long id = getNodeIdsByName(new String[] { name })[0];
+			if (id >= 0) {
+				node = gdbs.getNodeById(id);
 			}
-			if (node == null) {
+			else {
 				System.out.println("Didn't find " + name);
 			}
 			tx.success();
@@ -86,6 +130,28 @@ public class MyNeo4j {
 		return node;
 	}
 
+	// Neo4j ids of many names at once, -1 for unknown names, from the name
+	// dictionary of the shared snapshot
+	public long[] getNodeIdsByName(String[] names) {
+		int[] dense;
+		LongBuffer nodeIds;
+		Transaction tx = gdbs.beginTx();
+		try{
+			GraphSnapshot snap = snapshot();
+			dense = snap.getDictionary().get(names);
+			nodeIds = snap.getNodeIds();
+			tx.success();
+		}
+		finally {
+			tx.close();
+		}
+		long[] ids = new long[names.length];
+		for (int i = 0; i < names.length; i++) {
+			ids[i] = dense[i] != NameDictionary.missing ? nodeIds.get(dense[i]) : -1;
+		}
+		return ids;
+	}
+
 	// Console output
 	public void listBowtieComponent(String name) {
 		System.out.println("\n### List bowtie components");
@@ -137,17 +203,77 @@ public class MyNeo4j {
 		}
 	}
 
+	// Shortest paths, reachability and max weight paths for the pairs in
+	// cfg.pathQueriesFile, on the in-memory snapshot
+	public void pathQueries() {
+		Transaction tx = gdbs.beginTx();
+		try{
+			GraphSnapshot snap = snapshot();
+			int[][] pairs = PathQueries.load(cfg.pathQueriesFile, cfg.fileHeader, snap);
+			new PathQueries(snap, cfg.threads, cfg.pathMaxLength, cfg.pathMaxPaths).evaluate(pairs[0], pairs[1], cfg.printNodes);
+			tx.success();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not read " + cfg.pathQueriesFile, e);
+		}
+		finally {
+			tx.close();
+		}
+	}
+
 	// Bowtie
 	public void bowtie() {
 		Transaction tx = gdbs.beginTx();
 		try{
-			DetectBowtie bt = new DetectBowtie();
+			ResultCache cache = results();
+			if (cache != null && cache.hasBowtie()) {
+				restoreBowtie(cache);
+				tx.success();
+				return;
+			}
+			bt = new DetectBowtie(cfg.threads, cfg.printNodes);
+			component = null;
 			// SCC analysis and LCC
 			ArrayList<Integer> lscc = bt.sccAnalysis();
 
 			// Bowtie
-			if (lscc.size() > 0)
-				bt.bowTie(lscc, tx);
+			if (lscc.size() > 0) {
+				BatchWriter writer = new BatchWriter(cfg.batchSize);
+				bt.bowTie(lscc, writer);
+				writer.close();
+				if (cache != null) {
+					LongBuffer nodeIds = snapshot().getNodeIds();
+					byte[] classes = new byte[nodeIds.limit()];
+					for (int v = 0; v < nodeIds.limit(); v++) {
+						classes[v] = bt.getClasses()[(int) nodeIds.get(v)];
+					}
+					cache.setBowtie(denseComponents(nodeIds), bt.getNumComponents(), classes);
+				}
+			}
+			tx.success();
+		}
+		finally {
+			tx.close();
+		}
+	}
+
+	// Bowtie of every SCC above the size threshold, on the SCCs of bowtie()
+	public void multiBowtie() {
+		Transaction tx = gdbs.beginTx();
+		try{
+			GraphSnapshot snap = snapshot();
+			MultiBowtie multi;
+			if (component != null) {
+				multi = new MultiBowtie(snap, component, numComponents, cfg.threads);
+			}
+			else if (bt != null) {
+				multi = new MultiBowtie(snap, denseComponents(snap.getNodeIds()), bt.getNumComponents(), cfg.threads);
+			}
+			else {
+				throw new IllegalStateException("Multi bowtie needs the SCCs of bowtie() first");
+			}
+			multi.run(cfg.multiBowtieMinSize);
+			multi.evaluate(cfg.printNodes);
 			tx.success();
 		}
 		finally {
@@ -159,9 +285,48 @@ public class MyNeo4j {
 	public void influenceIndex() {
 		Transaction tx = gdbs.beginTx();
 		try{
-			InfluenceIndex ii = new InfluenceIndex(cfg);
-			ii.wrapper();
-			ii.evaluate();
+			if (cfg.inMemory) {
+				SnapshotInfluenceIndex ii = snapshotInfluenceIndex();
+				ResultCache cache = results();
+				if (cache != null && cache.hasInfluenceIndex()) {
+					ii.restore(cache.getInfluenceIndex(), cache.getErrorBound());
+				}
+				else {
+					ii.wrapper();
+					if (cache != null) {
+						cache.setInfluenceIndex(ii.getInfluenceIndex(), ii.getErrorBound());
+					}
+				}
+				ii.writeBack();
+				ii.evaluate();
+				lastIndex = ii;
+			}
+			else {
+				InfluenceIndex ii = new InfluenceIndex(cfg);
+				ii.wrapper();
+				ii.evaluate();
+			}
+			tx.success();
+		}
+		finally {
+			tx.close();
+		}
+	}
+
+	// Top k nodes by Influence Index
+	public void topInfluenceIndex() {
+		Transaction tx = gdbs.beginTx();
+		try{
+			// Ranked straight from the scores of influenceIndex() while they apply
+			SnapshotInfluenceIndex ii = lastIndex;
+			if (ii == null || graphChanged) {
+				ii = snapshotInfluenceIndex();
+				ResultCache cache = results();
+				if (cache != null && cache.hasInfluenceIndex()) {
+					ii.restore(cache.getInfluenceIndex(), cache.getErrorBound());
+				}
+			}
+			ii.evaluateTopK(ii.topK(cfg.topK));
 			tx.success();
 		}
 		finally {
@@ -169,41 +334,236 @@ public class MyNeo4j {
 		}
 	}
 
+	// Apply the changes in cfg.updateFile to Neo4j and recompute the Influence Index
+	// of the affected nodes only
+	public void updateInfluenceIndex() {
+		if (lastIndex == null) {
+			System.out.println("\nIncremental update needs the in-memory Influence Index, skipped");
+			return;
+		}
+		GraphSnapshot snap = lastIndex.getSnapshot();
+		GraphUpdate changes;
+		try {
+			changes = GraphUpdate.load(cfg.updateFile, cfg.fileHeader, snap);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not read " + cfg.updateFile, e);
+		}
+		// Snapshot first, it rejects invalid changes before Neo4j is touched
+		GraphSnapshot changed = changes.applyTo(snap);
+		changes.toNeo4j(snap, cfg.out, cfg.batchSize);
+		graphChanged = true;
+		snapshot = changed;
+		snap = changed;
+		SnapshotInfluenceIndex ii = new SnapshotInfluenceIndex(cfg, snap);
+		ii.update(lastIndex, changes);
+		ii.writeBack();
+		ii.evaluate();
+		lastIndex = ii;
+		adjacency = snap;
+	}
+
 	// Cumulative Influence Index
 	public void computeCumulativeInfluenceIndex() {
 		Transaction tx = gdbs.beginTx();
 		try{
-			InfluenceIndex ii = new InfluenceIndex(cfg);
-			ii.tag();
-			ii.wrapper();
-			ii.evaluateCumulative();
+			if (cfg.inMemory) {
+				SnapshotInfluenceIndex ii = snapshotInfluenceIndex();
+				ii.tag();
+				ResultCache cache = results();
+				if (cache != null && cache.hasCumulative()) {
+					ii.restore(cache.getCumulative(), cache.getCumulativeError());
+				}
+				else {
+					ii.wrapper();
+					if (cache != null) {
+						cache.setCumulative(ii.getInfluenceIndex(), ii.getErrorBound());
+					}
+				}
+				ii.writeBack();
+				ii.evaluateCumulative();
+			}
+			else {
+				InfluenceIndex ii = new InfluenceIndex(cfg);
+				ii.tag();
+				ii.wrapper();
+				ii.evaluateCumulative();
+			}
 			tx.success();
 		}
 		finally {
 			tx.close();
 		}
 	}
-	
+
+	// Cumulative Influence Index of many target sets in one sweep, on the in-memory snapshot
+	public void computeCumulativeTargets() {
+		Transaction tx = gdbs.beginTx();
+		try{
+			GraphSnapshot snap = snapshot();
+			TargetSets sets = cfg.cumulativeTargetsFile != null ? TargetSets.load(cfg.cumulativeTargetsFile, cfg.fileHeader, snap) : TargetSets.fromBowtie(snap);
+			SnapshotInfluenceIndex ii = new SnapshotInfluenceIndex(cfg, snap);
+			ii.cumulative(sets);
+			ii.evaluateTargets(sets);
+			tx.success();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not read " + cfg.cumulativeTargetsFile, e);
+		}
+		finally {
+			tx.close();
+		}
+	}
+
+	// Set up in-memory Influence Index, with the SCCs of the bowtie analysis if available
+	private SnapshotInfluenceIndex snapshotInfluenceIndex() {
+		GraphSnapshot snap = snapshot();
+		SnapshotInfluenceIndex ii = new SnapshotInfluenceIndex(cfg, snap);
+		if (cfg.condensation && component != null) {
+			ii.setComponents(component, numComponents);
+		}
+		else if (cfg.condensation && bt != null) {
+			ii.setComponents(denseComponents(snap.getNodeIds()), bt.getNumComponents());
+		}
+		return ii;
+	}
+
+	// SCC ids of the bowtie analysis by dense id
+	private int[] denseComponents(LongBuffer nodeIds) {
+		int[] ids = bt.getComponentIds();
+		int[] dense = new int[nodeIds.limit()];
+		for (int v = 0; v < dense.length; v++) {
+			dense[v] = ids[(int) nodeIds.get(v)];
+		}
+		return dense;
+	}
+
+	// In-memory snapshot of the current graph, shared by all analytics until the
+	// graph changes. Needs an open transaction on first use
+	private GraphSnapshot snapshot() {
+		if (snapshot == null) {
+			snapshot = GraphSnapshot.fromNeo4j(cfg.out);
+		}
+		return snapshot;
+	}
+
+	// Write the current graph to cfg.snapshotFile, for later runs without Neo4j
+	public void writeSnapshot() {
+		Transaction tx = gdbs.beginTx();
+		try{
+			SnapshotFile.write(snapshot(), cfg.snapshotFile);
+			tx.success();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not write " + cfg.snapshotFile, e);
+		}
+		finally {
+			tx.close();
+		}
+	}
+
+	// *** Result cache
+	// Opened on first use, null if switched off or the graph was changed by an update.
+	// Needs an open transaction
+	private ResultCache results() {
+		if (!cfg.resultCache || graphChanged) {
+			return null;
+		}
+		if (results == null) {
+			results = ResultCache.open(resultFile(), snapshot(), cfg);
+		}
+		return results;
+	}
+
+	private String resultFile() {
+		return (cfg.edgeFile != null ? cfg.edgeFile : cfg.dbPath) + ".results";
+	}
+
+	// Bowtie classes and SCCs from the results: write BOWTIE and print the stats
+	private void restoreBowtie(ResultCache cache) {
+		GraphSnapshot snap = snapshot();
+		byte[] classes = cache.getClasses();
+		LongBuffer nodeIds = snap.getNodeIds();
+		StaticConfig.BowTie[] names = StaticConfig.BowTie.values();
+		BatchWriter writer = new BatchWriter(cfg.batchSize);
+		for (int v = 0; v < nodeIds.limit(); v++) {
+			writer.setProperty(nodeIds.get(v), StaticConfig.nodeBT, names[classes[v]].toString());
+		}
+		writer.close();
+		bt = null;
+		component = cache.getComponentIds();
+		numComponents = cache.getNumComponents();
+		new SnapshotBowtie(snap, cfg.threads).restore(component, numComponents, classes);
+	}
+
+	// Write the results of this run to the sidecar file
+	public void saveResults() {
+		if (results == null) {
+			return;
+		}
+		try {
+			results.save();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not write " + resultFile(), e);
+		}
+	}
+
 	// Analytical calculation
 	// Eigenvector centrality variant with no cycle correction
 	// Uses COLT library http://acs.lbl.gov/ACSSoftware/colt/
 	public void analyticalComputation() {
 		InfluenceIndex ii = new InfluenceIndex(cfg);
-		DoubleMatrix2D adj = nw.getAdjMatrix();
-		DoubleMatrix1D val = nw.getValueVector();
-		ii.analyticalComp(adj, val, nw);
+		if (cfg.sparseSolver) {
+			centrality = ii.analyticalComp(adjacency);
+		}
+		else if (nw == null) {
+			// Loaded or generated network
+			centrality = ii.denseAnalyticalComp(adjacency);
+		}
+		else {
+			DoubleMatrix2D adj = nw.getAdjMatrix();
+			DoubleMatrix1D val = nw.getValueVector();
+			centrality = ii.analyticalComp(adj, val, nw);
+		}
 	}
 
-	// Remove aux properties
-	public void reset() {
-		System.out.println("\n*** Reset");
+	// *** Result export
+	// Start writing bowtie class, Influence Index and centrality of every node to
+	// cfg.exportFile in the background; call before the cumulative run overwrites II_VAL
+	public void exportResults() {
 		Transaction tx = gdbs.beginTx();
 		try{
-			for (Node n : GlobalGraphOperations.at(gdbs).getAllNodes()) {
-				n.setProperty(StaticConfig.nodeInfluenceIndex, 0.0);
-				n.setProperty(StaticConfig.nodeSwitch, StaticConfig.NodeSwitch.OFF.toString());
-				n.setProperty(StaticConfig.nodeTag, StaticConfig.NodeTag.NO.toString());
+			GraphSnapshot snap = snapshot();
+			export = new ResultExport(cfg.exportFile, snap);
+			export.setBowtie(snap.readBowtie());
+			if (lastIndex != null) {
+				export.setInfluenceIndex(lastIndex.getInfluenceIndex(), lastIndex.getErrorBound());
+			}
+			else {
+				LongBuffer nodeIds = snap.getNodeIds();
+				double[] ii = new double[nodeIds.limit()];
+				for (int v = 0; v < ii.length; v++) {
+					ii[v] = (double) gdbs.getNodeById(nodeIds.get(v)).getProperty(StaticConfig.nodeInfluenceIndex);
+				}
+				export.setInfluenceIndex(ii, null);
 			}
+			if (centrality != null) {
+				// Map from the dense ids of adjacency
+				LongBuffer ids = adjacency.getNodeIds();
+				LongIntMap dense = new LongIntMap(ids.limit());
+				for (int i = 0; i < ids.limit(); i++) {
+					dense.put(ids.get(i), i);
+				}
+				LongBuffer nodeIds = snap.getNodeIds();
+				double[] c = new double[nodeIds.limit()];
+				for (int v = 0; v < c.length; v++) {
+					int i = dense.get(nodeIds.get(v));
+					c[v] = i >= 0 ? centrality[i] : Double.NaN;
+				}
+				export.setCentrality(c);
+			}
+			export.start();
 			tx.success();
 		}
 		finally {
@@ -211,9 +571,25 @@ public class MyNeo4j {
 		}
 	}
 
+	// Wait for the export to be written
+	public void finishExport() {
+		if (export == null) {
+			return;
+		}
+		try {
+			export.finish();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not write " + cfg.exportFile, e);
+		}
+		export = null;
+	}
+
 	// Drop database
 	public void dropDatabase() {
 		System.out.println("Dropping db in " + cfg.dbPath);
+		snapshot = null;
+		lastIndex = null;
 		shutdown();
 		dropDatabase(new File(cfg.dbPath));
 		startup();
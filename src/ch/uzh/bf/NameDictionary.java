@@ -0,0 +1,197 @@
+package ch.uzh.bf;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class NameDictionary {
+
+	/*
+	 * Map from node name to dense id with open addressing (linear probing), no
+	 * per-entry objects. The names themselves stay in one UTF-8 byte arena, the
+	 * name of node v is bytes nameOffsets[v]..nameOffsets[v+1]-1; for a snapshot
+	 * file this is the mapped name dictionary, so nothing is copied.
+	 * Each slot packs the 32-bit hash of a name (high word) with its dense id + 1
+	 * (low word, 0 = empty), so a probe only compares bytes on a hash match.
+	 * Names are hashed and compared by code point, a lookup of a String needs no
+	 * encoding and no garbage. If a name occurs twice the last node wins.
+	 * Read-only once built, so lookups are thread safe
+	 */
+	public static final int missing = -1;
+
+	private IntBuffer nameOffsets;
+	private ByteBuffer nameBytes;
+	private int numNodes;
+	private long[] slots;
+	private int mask;
+
+	public NameDictionary(IntBuffer nameOffsets, ByteBuffer nameBytes, int numNodes) {
+		this.nameOffsets = nameOffsets;
+		this.nameBytes = nameBytes;
+		this.numNodes = numNodes;
+		int capacity = Integer.highestOneBit(Math.max(16, numNodes * 2 - 1)) << 1;
+		slots = new long[capacity];
+		mask = capacity - 1;
+		for (int v = 0; v < numNodes; v++) {
+			insert(v);
+		}
+	}
+
+	// *** Factories
+	// Names encoded into a fresh arena
+	public static NameDictionary of(String[] names) {
+		int[] offsets = new int[names.length + 1];
+		byte[][] encoded = new byte[names.length][];
+		for (int v = 0; v < names.length; v++) {
+			encoded[v] = names[v].getBytes(StandardCharsets.UTF_8);
+			offsets[v + 1] = offsets[v] + encoded[v].length;
+		}
+		byte[] arena = new byte[offsets[names.length]];
+		for (int v = 0; v < names.length; v++) {
+			System.arraycopy(encoded[v], 0, arena, offsets[v], encoded[v].length);
+		}
+		return new NameDictionary(IntBuffer.wrap(offsets), ByteBuffer.wrap(arena), names.length);
+	}
+
+	// *** Lookup
+	// Dense id of name, or -1 if there is no such node
+	public int get(String name) {
+		return get(name, 0, name.length());
+	}
+
+	// Same for name.substring(from, to), without creating it
+	public int get(String name, int from, int to) {
+		int h = hash(name, from, to);
+		int slot = h & mask;
+		long entry;
+		while ((entry = slots[slot]) != 0) {
+			if ((int) (entry >>> 32) == h) {
+				int v = (int) entry - 1;
+				if (matches(v, name, from, to)) {
+					return v;
+				}
+			}
+			slot = (slot + 1) & mask;
+		}
+		return missing;
+	}
+
+	// Bulk lookup, ids[i] = dense id of names[i] or -1
+	public int[] get(String[] names) {
+		int[] ids = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			ids[i] = get(names[i]);
+		}
+		return ids;
+	}
+
+	public int size() {
+		return numNodes;
+	}
+
+	// *** Table
+	private void insert(int v) {
+		int from = nameOffsets.get(v);
+		int to = nameOffsets.get(v + 1);
+		int h = hash(from, to);
+		int slot = h & mask;
+		long entry;
+		while ((entry = slots[slot]) != 0) {
+			if ((int) (entry >>> 32) == h && sameName((int) entry - 1, from, to)) {
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = ((long) h << 32) | (v + 1L);
+	}
+
+	// Hash of the code points of a String
+	private static int hash(String s, int from, int to) {
+		int h = 0;
+		for (int i = from; i < to; ) {
+			int cp = s.codePointAt(i);
+			h = h * 31 + cp;
+			i += Character.charCount(cp);
+		}
+		return spread(h);
+	}
+
+	// Same hash of the UTF-8 bytes from..to-1 of the arena
+	private int hash(int from, int to) {
+		int h = 0;
+		int i = from;
+		while (i < to) {
+			int b = nameBytes.get(i);
+			int cp;
+			if (b >= 0) {
+				cp = b;
+				i++;
+			}
+			else {
+				cp = decode(i, b);
+				i += length(b);
+			}
+			h = h * 31 + cp;
+		}
+		return spread(h);
+	}
+
+	private static int spread(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	// Is the name of v equal to s.substring(from, to)
+	private boolean matches(int v, String s, int from, int to) {
+		int i = nameOffsets.get(v);
+		int end = nameOffsets.get(v + 1);
+		int j = from;
+		while (i < end && j < to) {
+			int b = nameBytes.get(i);
+			int cp;
+			if (b >= 0) {
+				cp = b;
+				i++;
+			}
+			else {
+				cp = decode(i, b);
+				i += length(b);
+			}
+			int c = s.codePointAt(j);
+			if (c != cp) {
+				return false;
+			}
+			j += Character.charCount(c);
+		}
+		return i == end && j == to;
+	}
+
+	// Is the name of v equal to the arena bytes from..to-1
+	private boolean sameName(int v, int from, int to) {
+		int i = nameOffsets.get(v);
+		if (nameOffsets.get(v + 1) - i != to - from) {
+			return false;
+		}
+		for (int j = from; j < to; i++, j++) {
+			if (nameBytes.get(i) != nameBytes.get(j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Code point of the multi-byte UTF-8 sequence at i starting with lead byte b
+	private int decode(int i, int b) {
+		int n = length(b);
+		int cp = b & (0xFF >>> (n + 1));
+		for (int k = 1; k < n; k++) {
+			cp = (cp << 6) | (nameBytes.get(i + k) & 0x3F);
+		}
+		return cp;
+	}
+
+	private static int length(int b) {
+		b &= 0xFF;
+		return b < 0xE0 ? 2 : b < 0xF0 ? 3 : 4;
+	}
+}
@@ -0,0 +1,302 @@
+package ch.uzh.bf;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class NetworkGenerator {
+
+	/*
+	 * Synthetic ownership networks with a bowtie structure, for stress tests at any
+	 * scale without real data. Nodes 0..n-1 are laid out in blocks IN, SCC, OUT, TT,
+	 * OCC of configurable proportions. The network is generated one owned node at a
+	 * time: its owners are drawn from the blocks that keep the bowtie intact
+	 *   IN   owned by higher IN            (and owns at least one SCC node)
+	 *   SCC  owned by SCC and IN            (a cycle through all SCC nodes plus sccDegree random owners)
+	 *   OUT  owned by SCC, OUT, IN and TT   (first owner SCC or a lower OUT node)
+	 *   TT   owned by IN and lower TT       (first owner IN or a lower TT node)
+	 *   OCC  owned by OCC in small groups
+	 * so the bowtie analysis finds exactly these blocks.
+	 * In-degrees are Pareto distributed with mean about degree. Owners are picked with
+	 * a skew towards low ids within a block, which gives heavy-tailed out-degrees.
+	 * The owners together hold a share between minShare and maxShare of the node,
+	 * split by Pareto distributed weights. Values are log-normal.
+	 * Only the current node is kept in memory, output streams to files or straight
+	 * into an EdgeListLoader. The same seed gives the same network
+	 */
+	private static final int maxInDegree = 1000;
+	private static final int occGroup = 4;
+
+	// Structure
+	private int numNodes;
+	private long seed;
+	private double in = 0.2;
+	private double scc = 0.05;
+	private double out = 0.5;
+	private double tt = 0.15;
+	private double sccDegree = 2.0;
+
+	// Distributions
+	private double degree = 2.0;
+	private double degreeTail = 2.1;     // Pareto exponent of the in-degree
+	private double ownerSkew = 2.0;      // > 1 prefers low ids as owners
+	private double shareTail = 1.5;      // Pareto exponent of the owner weights
+	private double minShare = 0.5;
+	private double maxShare = 0.99;
+	private double valueSigma = 2.0;    // log-normal sigma of the values
+
+	// Block boundaries
+	private int inStart, sccStart, outStart, ttStart, occStart;
+
+	public NetworkGenerator(int numNodes, long seed) {
+		this.numNodes = numNodes;
+		this.seed = seed;
+	}
+
+	// Receives the generated network
+	public interface Sink {
+		void value(long node, double value);
+		void edge(long from, long to, double weight);
+	}
+
+	// *** Settings
+	// Fractions of IN, SCC, OUT and TT nodes, the rest is OCC. TT nodes need IN nodes
+	public void setProportions(double in, double scc, double out, double tt) {
+		if (in < 0 || scc < 0 || out < 0 || tt < 0 || in + scc + out + tt > 1.0) {
+			throw new IllegalArgumentException("Proportions must be non-negative and add up to at most 1");
+		}
+		this.in = in;
+		this.scc = scc;
+		this.out = out;
+		this.tt = tt;
+	}
+
+	// Mean number of owners from the SCC of an SCC node, besides its cycle predecessor
+	public void setSccDegree(double sccDegree) {
+		this.sccDegree = sccDegree;
+	}
+
+	public void setDegree(double degree, double degreeTail, double ownerSkew) {
+		if (degree < 1.0 || degreeTail <= 1.0 || ownerSkew < 1.0) {
+			throw new IllegalArgumentException("Need degree >= 1, degreeTail > 1 and ownerSkew >= 1");
+		}
+		this.degree = degree;
+		this.degreeTail = degreeTail;
+		this.ownerSkew = ownerSkew;
+	}
+
+	public void setWeights(double minShare, double maxShare, double shareTail) {
+		if (minShare <= 0 || maxShare > 1.0 || minShare > maxShare || shareTail <= 0) {
+			throw new IllegalArgumentException("Need 0 < minShare <= maxShare <= 1 and shareTail > 0");
+		}
+		this.minShare = minShare;
+		this.maxShare = maxShare;
+		this.shareTail = shareTail;
+	}
+
+	public void setValueSigma(double valueSigma) {
+		this.valueSigma = valueSigma;
+	}
+
+	// *** Generate
+	public void generate(Sink sink) {
+		inStart = 0;
+		sccStart = (int) (numNodes * in);
+		outStart = sccStart + (int) (numNodes * scc);
+		ttStart = outStart + (int) (numNodes * out);
+		occStart = ttStart + (int) (numNodes * tt);
+		int numScc = outStart - sccStart;
+		if (numScc < 2 && occStart > 0) {
+			throw new IllegalArgumentException("Need at least 2 SCC nodes for a bowtie");
+		}
+		if (sccStart == 0 && occStart > ttStart) {
+			throw new IllegalArgumentException("Need IN nodes for TT nodes, tubes and tendrils start from IN");
+		}
+		System.out.println("\n### Generating network of " + numNodes + " nodes, seed " + seed);
+		System.out.println("IN " + (sccStart - inStart) + ", SCC " + numScc + ", OUT " + (ttStart - outStart) + ", TT " + (occStart - ttStart) + ", OCC " + (numNodes - occStart));
+		long start = System.currentTimeMillis();
+
+		Random rnd = new Random(seed);
+		// Room for the sampled owners, the cycle predecessor and the assigned IN nodes
+		int[] owners = new int[maxInDegree + 2 + (numScc > 0 ? (sccStart + numScc - 1) / numScc : 0)];
+		double[] w = new double[owners.length];
+		// Pareto scale for the requested mean in-degree
+		double xmin = degree * (degreeTail - 1.0) / degreeTail;
+		long rels = 0;
+
+		for (int v = 0; v < numNodes; v++) {
+			sink.value(v, Math.exp(valueSigma * rnd.nextGaussian()));
+			int k = (int) Math.min(maxInDegree, Math.round(xmin * Math.pow(1.0 - rnd.nextDouble(), -1.0 / degreeTail)));
+			int cnt = 0;
+
+			if (v < sccStart) {
+				// IN: owned by higher IN nodes, acyclic so that the SCC stays the largest one
+				for (int i = 0; i < k && v + 1 < sccStart; i++) {
+					cnt = add(owners, cnt, sccStart - 1 - (pick(rnd, v + 1, sccStart) - v - 1), v);
+				}
+			}
+			else if (v < outStart) {
+				// SCC: cycle predecessor, other SCC nodes, and the IN nodes assigned to v
+				cnt = add(owners, cnt, v == sccStart ? outStart - 1 : v - 1, v);
+				int s = (int) Math.round(sccDegree * -Math.log(1.0 - rnd.nextDouble()));
+				for (int i = 0; i < s && i < maxInDegree; i++) {
+					cnt = add(owners, cnt, pick(rnd, sccStart, outStart), v);
+				}
+				for (int u = v - sccStart; u < sccStart; u += numScc) {
+					cnt = add(owners, cnt, u, v);
+				}
+				for (int i = 1; i < k && sccStart > 0; i++) {
+					cnt = add(owners, cnt, pick(rnd, inStart, sccStart), v);
+				}
+			}
+			else if (v < ttStart) {
+				// OUT: reachable from the SCC
+				int first = v == outStart || rnd.nextBoolean() ? pick(rnd, sccStart, outStart) : pick(rnd, outStart, v);
+				cnt = add(owners, cnt, first, v);
+				for (int i = 1; i < k; i++) {
+					double r = rnd.nextDouble();
+					int u;
+					if (r < 0.4 || v == outStart) {
+						u = pick(rnd, sccStart, outStart);
+					}
+					else if (r < 0.8) {
+						u = pick(rnd, outStart, v);
+					}
+					else if (r < 0.9 && sccStart > 0) {
+						u = pick(rnd, inStart, sccStart);
+					}
+					else if (occStart > ttStart) {
+						u = pick(rnd, ttStart, occStart);
+					}
+					else {
+						continue;
+					}
+					cnt = add(owners, cnt, u, v);
+				}
+			}
+			else if (v < occStart) {
+				// TT: reachable from IN, not from the SCC
+				for (int i = 0; i < k; i++) {
+					int u = (i == 0 || rnd.nextBoolean()) || v == ttStart ? pick(rnd, inStart, sccStart) : pick(rnd, ttStart, v);
+					cnt = add(owners, cnt, u, v);
+				}
+			}
+			else {
+				// OCC: small groups owning each other
+				int group = occStart + ((v - occStart) / occGroup) * occGroup;
+				int size = Math.min(occGroup, numNodes - group);
+				if (size > 1) {
+					for (int i = 0; i < Math.min(k, size - 1); i++) {
+						cnt = add(owners, cnt, group + rnd.nextInt(size), v);
+					}
+				}
+			}
+
+			// Split the share held by the owners
+			if (cnt > 0) {
+				double share = minShare + (maxShare - minShare) * rnd.nextDouble();
+				double sum = 0.0;
+				for (int i = 0; i < cnt; i++) {
+					w[i] = Math.pow(1.0 - rnd.nextDouble(), -1.0 / shareTail);
+					sum += w[i];
+				}
+				for (int i = 0; i < cnt; i++) {
+					sink.edge(owners[i], v, share * w[i] / sum);
+				}
+				rels += cnt;
+			}
+		}
+		long time = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("Generated " + numNodes + " nodes and " + rels + " rels in " + time + " ms");
+	}
+
+	// Owner in [from, to), skewed towards from
+	private int pick(Random rnd, int from, int to) {
+		return from + (int) ((to - from) * Math.pow(rnd.nextDouble(), ownerSkew));
+	}
+
+	// Add owner u of v, unless it is v itself or already there
+	private static int add(int[] owners, int cnt, int u, int v) {
+		if (u == v || cnt == owners.length) {
+			return cnt;
+		}
+		for (int i = 0; i < cnt; i++) {
+			if (owners[i] == u) {
+				return cnt;
+			}
+		}
+		owners[cnt] = u;
+		return cnt + 1;
+	}
+
+	// *** Targets
+	public void generate(final EdgeListLoader loader) {
+		generate(new Sink() {
+			public void value(long node, double value) {
+				loader.addValue(node, value);
+			}
+
+			public void edge(long from, long to, double weight) {
+				loader.addEdge(from, to, weight);
+			}
+		});
+	}
+
+	// Edge and value files in the format of EdgeListLoader, without header
+	public void generate(String edgeFile, String valueFile) throws IOException {
+		final char delimiter = EdgeListLoader.delimiterOf(edgeFile);
+		final Writer edges = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(edgeFile), StandardCharsets.UTF_8), 1 << 20);
+		final Writer values = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(valueFile), StandardCharsets.UTF_8), 1 << 20);
+		try {
+			final IOException[] failure = new IOException[1];
+			generate(new Sink() {
+				public void value(long node, double value) {
+					write(values, node + "" + delimiter + value + "\n");
+				}
+
+				public void edge(long from, long to, double weight) {
+					write(edges, from + "" + delimiter + to + delimiter + weight + "\n");
+				}
+
+				private void write(Writer writer, String line) {
+					if (failure[0] == null) {
+						try {
+							writer.write(line);
+						}
+						catch (IOException e) {
+							failure[0] = e;
+						}
+					}
+				}
+			});
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+		}
+		finally {
+			edges.close();
+			values.close();
+		}
+	}
+
+	// Usage: NetworkGenerator nodes seed (edge file value file | snapshot file)
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3 && args.length != 4) {
+			System.out.println("Usage: NetworkGenerator <nodes> <seed> (<edge file> <value file> | <snapshot file>)");
+			return;
+		}
+		NetworkGenerator gen = new NetworkGenerator(Integer.parseInt(args[0]), Long.parseLong(args[1]));
+		if (args.length == 4) {
+			gen.generate(args[2], args[3]);
+		}
+		else {
+			EdgeListLoader loader = new EdgeListLoader(',', false);
+			gen.generate(loader);
+			SnapshotFile.write(loader.toSnapshot(), args[2]);
+		}
+	}
+}
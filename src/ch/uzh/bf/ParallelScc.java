@@ -0,0 +1,326 @@
+package ch.uzh.bf;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class ParallelScc {
+
+	/*
+	 * Parallel strongly connected components (SCC) on CSR neighbour buffers:
+	 *   1. Trimming: nodes without live in- or out-neighbours are SCCs of their own
+	 *   2. Forward-backward: the nodes both reachable from and reaching a pivot
+	 *      (chosen by degree, so usually in the largest SCC) form its SCC
+	 *   3. Colouring: the largest node id reaching a node is propagated downstream,
+	 *      every node keeping its own id is a root and its SCC are the nodes of
+	 *      the same colour reaching it
+	 * Removed nodes always form complete SCCs, so the SCCs of the remaining nodes
+	 * are SCCs of the whole graph. Steps 2 and 3 run on a worker pool.
+	 * Component ids are numbered by smallest node id, so the result does not
+	 * depend on the number of threads
+	 */
+	private int size;
+	private IntBuffer offsets;       // offsets[v]..offsets[v+1]-1 = downstream relationships of v
+	private IntBuffer targets;       // targets[r] = end node of relationship r
+	private IntBuffer inOffsets;     // inOffsets[v]..inOffsets[v+1]-1 = upstream relationships of v
+	private IntBuffer sources;       // sources[r] = start node of upstream relationship r
+
+	private boolean[] exists;        // exists[v] = v is a node (ids need not be dense)
+	private boolean[] live;          // live[v] = v exists and has no component yet
+	private int[] comp;              // comp[v] = id of strong component containing v
+	private AtomicInteger count;     // number of strongly-connected components
+
+	private int threads;
+	private ExecutorService pool;
+
+	public ParallelScc(IntBuffer offsets, IntBuffer targets, IntBuffer inOffsets, IntBuffer sources, boolean[] exists, int threads) {
+		this.size = exists.length;
+		this.offsets = offsets;
+		this.targets = targets;
+		this.inOffsets = inOffsets;
+		this.sources = sources;
+		this.exists = exists;
+		this.live = exists.clone();
+		this.threads = threads;
+		comp = new int[size];
+		count = new AtomicInteger(0);
+	}
+
+	// Returns component ids indexed by node id
+	public int[] run() {
+		pool = Executors.newFixedThreadPool(threads);
+		try {
+			int pivot = trim();
+			forwardBackward(pivot);
+			colouring();
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		renumber();
+		return comp;
+	}
+
+	public int getCount() {
+		return count.get();
+	}
+
+	// *** Trimming
+	// Returns the remaining node with the largest in-degree * out-degree as pivot
+	private int trim() {
+		int[] inDeg = new int[size];
+		int[] outDeg = new int[size];
+		// Nodes leave the live set when queued, so each node is queued at most once
+		int[] queue = new int[size];
+		int tail = 0;
+		for (int v = 0; v < size; v++) {
+			if (live[v]) {
+				outDeg[v] = offsets.get(v + 1) - offsets.get(v);
+				inDeg[v] = inOffsets.get(v + 1) - inOffsets.get(v);
+				if (inDeg[v] == 0 || outDeg[v] == 0) {
+					tail = enqueue(queue, tail, v);
+				}
+			}
+		}
+		int head = 0;
+		while (head < tail) {
+			int v = queue[head++];
+			for (int r = offsets.get(v); r < offsets.get(v + 1); r++) {
+				int w = targets.get(r);
+				if (live[w] && --inDeg[w] == 0) {
+					tail = enqueue(queue, tail, w);
+				}
+			}
+			for (int r = inOffsets.get(v); r < inOffsets.get(v + 1); r++) {
+				int u = sources.get(r);
+				if (live[u] && --outDeg[u] == 0) {
+					tail = enqueue(queue, tail, u);
+				}
+			}
+		}
+		int pivot = -1;
+		long max = -1;
+		for (int v = 0; v < size; v++) {
+			if (live[v] && (long) inDeg[v] * outDeg[v] > max) {
+				max = (long) inDeg[v] * outDeg[v];
+				pivot = v;
+			}
+		}
+		return pivot;
+	}
+
+	// Trims v as its own component and queues it to update its neighbours
+	private int enqueue(int[] queue, int tail, int v) {
+		live[v] = false;
+		comp[v] = count.getAndIncrement();
+		queue[tail] = v;
+		return tail + 1;
+	}
+
+	// *** Forward-backward from the pivot
+	private void forwardBackward(int pivot) {
+		if (pivot < 0) {
+			return;
+		}
+		AtomicIntegerArray forward = new AtomicIntegerArray(size);
+		AtomicIntegerArray backward = new AtomicIntegerArray(size);
+		bfs(pivot, offsets, targets, forward);
+		bfs(pivot, inOffsets, sources, backward);
+		int id = count.getAndIncrement();
+		for (int v = 0; v < size; v++) {
+			if (forward.get(v) == 1 && backward.get(v) == 1) {
+				live[v] = false;
+				comp[v] = id;
+			}
+		}
+	}
+
+	// Level-synchronous parallel BFS over live nodes, visited[v] is set to 1
+	private void bfs(int start, final IntBuffer offsets, final IntBuffer targets, final AtomicIntegerArray visited) {
+		int[] frontier = new int[size];
+		final int[] next = new int[size];
+		final AtomicInteger nextSize = new AtomicInteger(0);
+		visited.set(start, 1);
+		frontier[0] = start;
+		int frontierSize = 1;
+		while (frontierSize > 0) {
+			final int[] current = frontier;
+			nextSize.set(0);
+			parallelFor(frontierSize, new RangeTask() {
+				void run(int from, int to) {
+					for (int i = from; i < to; i++) {
+						int v = current[i];
+						for (int r = offsets.get(v); r < offsets.get(v + 1); r++) {
+							int w = targets.get(r);
+							if (live[w] && visited.get(w) == 0 && visited.compareAndSet(w, 0, 1)) {
+								next[nextSize.getAndIncrement()] = w;
+							}
+						}
+					}
+				}
+			});
+			frontierSize = nextSize.get();
+			System.arraycopy(next, 0, frontier, 0, frontierSize);
+		}
+	}
+
+	// *** Colouring of the remaining nodes
+	private void colouring() {
+		final AtomicIntegerArray colour = new AtomicIntegerArray(size);
+		while (true) {
+			// Start with own id as colour
+			int remaining = 0;
+			for (int v = 0; v < size; v++) {
+				if (live[v]) {
+					colour.set(v, v);
+					remaining++;
+				}
+			}
+			if (remaining == 0) {
+				return;
+			}
+
+			// Propagate max colour downstream until stable
+			final AtomicBoolean changed = new AtomicBoolean(true);
+			while (changed.get()) {
+				changed.set(false);
+				parallelFor(size, new RangeTask() {
+					void run(int from, int to) {
+						boolean myChange = false;
+						for (int v = from; v < to; v++) {
+							if (!live[v]) {
+								continue;
+							}
+							int c = colour.get(v);
+							for (int r = offsets.get(v); r < offsets.get(v + 1); r++) {
+								int w = targets.get(r);
+								if (!live[w]) {
+									continue;
+								}
+								int cw;
+								while ((cw = colour.get(w)) < c) {
+									if (colour.compareAndSet(w, cw, c)) {
+										myChange = true;
+										break;
+									}
+								}
+							}
+						}
+						if (myChange) {
+							changed.set(true);
+						}
+					}
+				});
+			}
+
+			// Roots keep their own colour
+			int numRoots = 0;
+			final int[] roots = new int[remaining];
+			for (int v = 0; v < size; v++) {
+				if (live[v] && colour.get(v) == v) {
+					roots[numRoots++] = v;
+				}
+			}
+
+			// SCC of a root: nodes of its colour reaching it, colours are disjoint
+			parallelFor(numRoots, new RangeTask() {
+				void run(int from, int to) {
+					int[] queue = new int[16];
+					for (int i = from; i < to; i++) {
+						int root = roots[i];
+						int id = count.getAndIncrement();
+						int head = 0;
+						int tail = 0;
+						queue[tail++] = root;
+						comp[root] = id;
+						colour.set(root, -1);
+						while (head < tail) {
+							int v = queue[head++];
+							for (int r = inOffsets.get(v); r < inOffsets.get(v + 1); r++) {
+								int u = sources.get(r);
+								if (live[u] && colour.get(u) == root) {
+									colour.set(u, -1);
+									comp[u] = id;
+									if (tail == queue.length) {
+										queue = Arrays.copyOf(queue, 2 * queue.length);
+									}
+									queue[tail++] = u;
+								}
+							}
+						}
+					}
+				}
+			});
+			for (int v = 0; v < size; v++) {
+				if (live[v] && colour.get(v) == -1) {
+					live[v] = false;
+				}
+			}
+		}
+	}
+
+	// *** Canonical component ids, in order of smallest node id
+	private void renumber() {
+		int[] map = new int[count.get()];
+		Arrays.fill(map, -1);
+		int next = 0;
+		for (int v = 0; v < size; v++) {
+			if (!exists[v]) {
+				continue;
+			}
+			if (map[comp[v]] < 0) {
+				map[comp[v]] = next++;
+			}
+			comp[v] = map[comp[v]];
+		}
+		count.set(next);
+	}
+
+	// *** Worker pool
+	private abstract static class RangeTask {
+		abstract void run(int from, int to);
+	}
+
+	// Run task on [0, n) split in chunks over the workers
+	private void parallelFor(final int n, final RangeTask task) {
+		if (threads <= 1 || n < 1024) {
+			task.run(0, n);
+			return;
+		}
+		final int chunk = Math.max(1024, n / (8 * threads));
+		final AtomicInteger next = new AtomicInteger(0);
+		try {
+			List<Future<Void>> workers = new ArrayList<Future<Void>>();
+			for (int t = 0; t < threads; t++) {
+				workers.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						int from;
+						while ((from = next.getAndAdd(chunk)) < n) {
+							task.run(from, Math.min(from + chunk, n));
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> worker : workers) {
+				worker.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("SCC detection interrupted", e);
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException("SCC detection failed", e.getCause());
+		}
+	}
+}
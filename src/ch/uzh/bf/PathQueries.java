@@ -0,0 +1,574 @@
+package ch.uzh.bf;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PathQueries {
+
+	/*
+	 * Many source/target pair queries at once on a GraphSnapshot, in parallel over
+	 * the pairs. Shortest paths count hops and are found by bidirectional breadth
+	 * first search (BFS): the side with the smaller frontier is expanded one full
+	 * layer at a time, and once the layers meet after kf forward and kb backward
+	 * layers the distance is kf + kb and every shortest path passes through a node
+	 * of the last layer. The max weight path maximises the indirect weight, i.e.,
+	 * the product of the weights along the path, by Dijkstra's algorithm, which
+	 * needs all weights in [0, 1].
+	 * Each worker thread reuses its search buffers for all pairs; nodes are marked
+	 * with the number of the query instead of clearing the buffers in between
+	 */
+	public static final int notReachable = -1;
+
+	private GraphSnapshot snap;
+	private IntBuffer offsets;       // offsets[v]..offsets[v+1]-1 = downstream relationships of v
+	private IntBuffer targets;       // targets[r] = end node of relationship r
+	private DoubleBuffer weights;
+	private IntBuffer inOffsets;     // inOffsets[v]..inOffsets[v+1]-1 = upstream relationships of v
+	private IntBuffer sources;       // sources[r] = start node of upstream relationship r
+
+	private int threads;
+	private int maxLength;           // longest shortest path searched for
+	private int maxPaths;            // most paths listed per pair by allShortestPaths()
+
+	// Per-batch worker state, and the buffers of the calling thread if serial
+	private ExecutorService pool;
+	private ThreadLocal<Search> searches;
+	private Search local;
+
+	public PathQueries(GraphSnapshot snap, int threads, int maxLength, int maxPaths) {
+		this.snap = snap;
+		this.threads = threads;
+		this.maxLength = maxLength;
+		this.maxPaths = maxPaths;
+		offsets = snap.getOffsets();
+		targets = snap.getTargets();
+		weights = snap.getWeights();
+		inOffsets = snap.getInOffsets();
+		sources = snap.getSources();
+	}
+
+	// Result of one pair, paths are dense ids from source to target
+	public static final class Result {
+		public int length = notReachable;  // hops of the shortest path
+		public int[][] paths;              // one or all shortest paths, or the max weight path
+		public boolean truncated;          // more than maxPaths shortest paths
+		public double weight;              // indirect weight of the max weight path
+	}
+
+	// *** Load pairs
+	// Pairs from a delimited text file with one (source, target) node name pair per
+	// line, same conventions as EdgeListLoader. Returns {sources, targets}, pairs
+	// with unknown node names are skipped
+	public static int[][] load(String file, boolean header, GraphSnapshot snap) throws IOException {
+		System.out.println("\n### Loading path queries from " + file);
+		char delimiter = EdgeListLoader.delimiterOf(file);
+		NameDictionary byName = snap.getDictionary();
+		int[] from = new int[16];
+		int[] to = new int[16];
+		int cnt = 0;
+		long rows = 0;
+		long skipped = 0;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			if (header) {
+				reader.readLine();
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.charAt(0) == '#') {
+					continue;
+				}
+				int cut = line.indexOf(delimiter);
+				if (cut < 0) {
+					throw new IllegalArgumentException("Expected 2 fields: " + line);
+				}
+				rows++;
+				int s = byName.get(line.substring(0, cut).trim());
+				int t = byName.get(line.substring(cut + 1).trim());
+				if (s == NameDictionary.missing || t == NameDictionary.missing) {
+					skipped++;
+					continue;
+				}
+				if (cnt == from.length) {
+					from = Arrays.copyOf(from, 2 * cnt);
+					to = Arrays.copyOf(to, 2 * cnt);
+				}
+				from[cnt] = s;
+				to[cnt++] = t;
+			}
+		}
+		finally {
+			reader.close();
+		}
+		System.out.println("Found " + cnt + " pairs in " + rows + " rows, skipped " + skipped + " with unknown nodes");
+		return new int[][] { Arrays.copyOf(from, cnt), Arrays.copyOf(to, cnt) };
+	}
+
+	// *** Batch queries
+	// One shortest path per pair (of at most maxLength hops)
+	public Result[] shortestPaths(final int[] from, final int[] to) {
+		final Result[] results = new Result[from.length];
+		forEachPair(from.length, new PairTask() {
+			void run(int i, Search search) {
+				results[i] = search.shortest(from[i], to[i], maxLength, false);
+			}
+		});
+		return results;
+	}
+
+	// All shortest paths per pair, at most maxPaths of them
+	public Result[] allShortestPaths(final int[] from, final int[] to) {
+		final Result[] results = new Result[from.length];
+		forEachPair(from.length, new PairTask() {
+			void run(int i, Search search) {
+				results[i] = search.shortest(from[i], to[i], maxLength, true);
+			}
+		});
+		return results;
+	}
+
+	// Is there a path of any length from source to target
+	public boolean[] reachable(final int[] from, final int[] to) {
+		final boolean[] results = new boolean[from.length];
+		forEachPair(from.length, new PairTask() {
+			void run(int i, Search search) {
+				results[i] = search.shortest(from[i], to[i], Integer.MAX_VALUE, false).length != notReachable;
+			}
+		});
+		return results;
+	}
+
+	// Path with the largest indirect weight per pair
+	public Result[] maxWeightPaths(final int[] from, final int[] to) {
+		for (int r = 0; r < weights.limit(); r++) {
+			double w = weights.get(r);
+			if (w < 0.0 || w > 1.0) {
+				throw new IllegalArgumentException("Max weight paths need weights in [0, 1], found " + w);
+			}
+		}
+		final Result[] results = new Result[from.length];
+		forEachPair(from.length, new PairTask() {
+			void run(int i, Search search) {
+				results[i] = search.maxWeight(from[i], to[i]);
+			}
+		});
+		return results;
+	}
+
+	private abstract static class PairTask {
+		abstract void run(int i, Search search);
+	}
+
+	// Run task for pairs 0..n-1 in chunks over the workers
+	private void forEachPair(final int n, final PairTask task) {
+		final int nodes = snap.getNumNodes();
+		if (threads <= 1 || n < 64) {
+			if (local == null) {
+				local = new Search(nodes);
+			}
+			for (int i = 0; i < n; i++) {
+				task.run(i, local);
+			}
+			return;
+		}
+		searches = new ThreadLocal<Search>() {
+			protected Search initialValue() {
+				return new Search(nodes);
+			}
+		};
+		pool = Executors.newFixedThreadPool(threads);
+		final int chunk = Math.max(1, Math.min(64, n / (8 * threads)));
+		final AtomicInteger next = new AtomicInteger(0);
+		try {
+			List<Future<Void>> workers = new ArrayList<Future<Void>>();
+			for (int t = 0; t < threads; t++) {
+				workers.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						Search search = searches.get();
+						int first;
+						while ((first = next.getAndAdd(chunk)) < n) {
+							int last = Math.min(first + chunk, n);
+							for (int i = first; i < last; i++) {
+								task.run(i, search);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> worker : workers) {
+				worker.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Path queries interrupted", e);
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException("Path queries failed", e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+			pool = null;
+			searches = null;
+		}
+	}
+
+	// *** Search buffers of one thread
+	private final class Search {
+		private int query;               // number of the current query
+		private int[] seenF;             // seenF[v] = query if v was reached forward
+		private int[] seenB;             // seenB[v] = query if v was reached backward
+		private int[] distF;             // distF[v] = hops from the source
+		private int[] distB;             // distB[v] = hops to the target
+		private int[] parentF;           // parentF[v] = predecessor of v towards the source
+		private int[] parentB;           // parentB[v] = successor of v towards the target
+		private int[] queueF;            // nodes reached forward, in BFS order
+		private int[] queueB;
+		private int[] meet;              // nodes of the last layer reached from both sides
+		private int numMeet;
+		private double[] best;           // best[v] = largest indirect weight from the source
+
+		// Binary max-heap of (weight, node) for Dijkstra, stale entries are skipped
+		private double[] heapWeight = new double[16];
+		private int[] heapNode = new int[16];
+		private int heapSize;
+
+		// Paths under construction
+		private int[] trail;
+		private List<int[]> found = new ArrayList<int[]>();
+
+		Search(int n) {
+			seenF = new int[n];
+			seenB = new int[n];
+			distF = new int[n];
+			distB = new int[n];
+			parentF = new int[n];
+			parentB = new int[n];
+			queueF = new int[n];
+			queueB = new int[n];
+			meet = new int[n];
+		}
+
+		private void nextQuery() {
+			if (++query == Integer.MAX_VALUE) {
+				Arrays.fill(seenF, 0);
+				Arrays.fill(seenB, 0);
+				query = 1;
+			}
+		}
+
+		// Bidirectional BFS, with all = false stops at the first node reached from both sides
+		Result shortest(int s, int t, int limit, boolean all) {
+			Result result = new Result();
+			if (s == t) {
+				result.length = 0;
+				result.paths = new int[][] { { s } };
+				return result;
+			}
+			nextQuery();
+			seenF[s] = query;
+			distF[s] = 0;
+			parentF[s] = -1;
+			queueF[0] = s;
+			seenB[t] = query;
+			distB[t] = 0;
+			parentB[t] = -1;
+			queueB[0] = t;
+			int headF = 0, tailF = 1, kf = 0;
+			int headB = 0, tailB = 1, kb = 0;
+			numMeet = 0;
+
+			while (headF < tailF && headB < tailB && kf + kb < limit) {
+				if (tailF - headF <= tailB - headB) {
+					tailF = expand(headF, tailF, queueF, offsets, targets, seenF, distF, parentF, seenB, ++kf, all);
+					headF = layerStart;
+				}
+				else {
+					tailB = expand(headB, tailB, queueB, inOffsets, sources, seenB, distB, parentB, seenF, ++kb, all);
+					headB = layerStart;
+				}
+				if (numMeet > 0) {
+					break;
+				}
+			}
+			if (numMeet == 0) {
+				return result;
+			}
+			result.length = distF[meet[0]] + distB[meet[0]];
+			if (!all) {
+				result.paths = new int[][] { path(meet[0]) };
+				return result;
+			}
+			listAll(result);
+			return result;
+		}
+
+		private int layerStart;          // start of the layer just added by expand()
+
+		// Add the next layer of one side, returns the new tail of its queue
+		private int expand(int head, int tail, int[] queue, IntBuffer off, IntBuffer adj, int[] seen, int[] dist, int[] parent, int[] other, int k, boolean all) {
+			int end = tail;
+			for (int i = head; i < end; i++) {
+				int u = queue[i];
+				for (int r = off.get(u); r < off.get(u + 1); r++) {
+					int w = adj.get(r);
+					if (seen[w] == query) {
+						continue;
+					}
+					seen[w] = query;
+					dist[w] = k;
+					parent[w] = u;
+					queue[tail++] = w;
+					if (other[w] == query) {
+						meet[numMeet++] = w;
+						if (!all) {
+							layerStart = end;
+							return tail;
+						}
+					}
+				}
+			}
+			layerStart = end;
+			return tail;
+		}
+
+		// Source to m by the forward parents, m to target by the backward parents
+		private int[] path(int m) {
+			int[] p = new int[distF[m] + distB[m] + 1];
+			int v = m;
+			for (int i = distF[m]; i >= 0; i--) {
+				p[i] = v;
+				v = parentF[v];
+			}
+			v = m;
+			for (int i = distF[m]; i < p.length; i++) {
+				p[i] = v;
+				v = parentB[v];
+			}
+			return p;
+		}
+
+		// Every shortest path has one node in the last layer: combine the shortest
+		// paths from the source to it with those from it to the target
+		private void listAll(Result result) {
+			int d = result.length;
+			trail = new int[d + 1];
+			found.clear();
+			for (int i = 0; i < numMeet && found.size() <= maxPaths; i++) {
+				int m = meet[i];
+				trail[distF[m]] = m;
+				toSource(m, m, d);
+			}
+			result.truncated = found.size() > maxPaths;
+			int cnt = Math.min(found.size(), maxPaths);
+			result.paths = found.subList(0, cnt).toArray(new int[cnt][]);
+		}
+
+		// Fill trail[0..distF[v]-1] with predecessors of v one hop closer to the
+		// source, then the rest from the meeting node m
+		private void toSource(int v, int m, int d) {
+			if (distF[v] == 0) {
+				toTarget(m, d);
+				return;
+			}
+			for (int r = inOffsets.get(v); r < inOffsets.get(v + 1) && found.size() <= maxPaths; r++) {
+				int u = sources.get(r);
+				if (seenF[u] == query && distF[u] == distF[v] - 1) {
+					trail[distF[u]] = u;
+					toSource(u, m, d);
+				}
+			}
+		}
+
+		// Fill the rest of trail with successors of v one hop closer to the target
+		private void toTarget(int v, int d) {
+			if (distB[v] == 0) {
+				found.add(trail.clone());
+				return;
+			}
+			int at = d - distB[v];
+			for (int r = offsets.get(v); r < offsets.get(v + 1) && found.size() <= maxPaths; r++) {
+				int w = targets.get(r);
+				if (seenB[w] == query && distB[w] == distB[v] - 1) {
+					trail[at + 1] = w;
+					toTarget(w, d);
+				}
+			}
+		}
+
+		// Dijkstra on the largest product of weights, ends when the target is settled.
+		// Unreachable targets are ruled out by the cheaper bidirectional BFS first
+		Result maxWeight(int s, int t) {
+			Result result = new Result();
+			if (shortest(s, t, Integer.MAX_VALUE, false).length == notReachable) {
+				return result;
+			}
+			if (best == null) {
+				best = new double[seenF.length];
+			}
+			nextQuery();
+			seenF[s] = query;
+			best[s] = 1.0;
+			parentF[s] = -1;
+			heapSize = 0;
+			push(1.0, s);
+			while (heapSize > 0) {
+				double w = heapWeight[0];
+				int u = pop();
+				if (seenB[u] == query || w < best[u]) {
+					continue;
+				}
+				seenB[u] = query; // settled
+				if (u == t) {
+					break;
+				}
+				for (int r = offsets.get(u); r < offsets.get(u + 1); r++) {
+					int x = targets.get(r);
+					double next = w * weights.get(r);
+					if (seenB[x] != query && (seenF[x] != query || next > best[x])) {
+						seenF[x] = query;
+						best[x] = next;
+						parentF[x] = u;
+						push(next, x);
+					}
+				}
+			}
+			if (seenB[t] != query) {
+				return result;
+			}
+			int len = 0;
+			for (int v = t; v != s; v = parentF[v]) {
+				len++;
+			}
+			int[] p = new int[len + 1];
+			for (int v = t, i = len; i >= 0; v = parentF[v], i--) {
+				p[i] = v;
+			}
+			result.length = len;
+			result.paths = new int[][] { p };
+			result.weight = best[t];
+			return result;
+		}
+
+		private void push(double w, int v) {
+			if (heapSize == heapNode.length) {
+				heapWeight = Arrays.copyOf(heapWeight, 2 * heapSize);
+				heapNode = Arrays.copyOf(heapNode, 2 * heapSize);
+			}
+			int i = heapSize++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (heapWeight[parent] >= w) {
+					break;
+				}
+				heapWeight[i] = heapWeight[parent];
+				heapNode[i] = heapNode[parent];
+				i = parent;
+			}
+			heapWeight[i] = w;
+			heapNode[i] = v;
+		}
+
+		private int pop() {
+			int top = heapNode[0];
+			double w = heapWeight[--heapSize];
+			int v = heapNode[heapSize];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= heapSize) {
+					break;
+				}
+				if (child + 1 < heapSize && heapWeight[child + 1] > heapWeight[child]) {
+					child++;
+				}
+				if (heapWeight[child] <= w) {
+					break;
+				}
+				heapWeight[i] = heapWeight[child];
+				heapNode[i] = heapNode[child];
+				i = child;
+			}
+			heapWeight[i] = w;
+			heapNode[i] = v;
+			return top;
+		}
+	}
+
+	// *** Output results to console
+	// All four queries for the pairs, per pair if printPairs
+	public void evaluate(int[] from, int[] to, boolean printPairs) {
+		System.out.println("\n### Path queries for " + from.length + " pairs");
+		long start = System.nanoTime();
+		Result[] all = allShortestPaths(from, to);
+		Metrics.time("paths.allShortest", start);
+		start = System.nanoTime();
+		boolean[] reach = reachable(from, to);
+		Metrics.time("paths.reachable", start);
+		start = System.nanoTime();
+		Result[] heavy = maxWeightPaths(from, to);
+		Metrics.time("paths.maxWeight", start);
+
+		int reached = 0;
+		int found = 0;
+		long hops = 0;
+		PrintStream out = ResultExport.console();
+		for (int i = 0; i < from.length; i++) {
+			if (reach[i]) {
+				reached++;
+			}
+			if (all[i].length != notReachable) {
+				found++;
+				hops += all[i].length;
+			}
+			if (!printPairs) {
+				continue;
+			}
+			out.print(snap.getName(from[i]) + " -> " + snap.getName(to[i]) + ":\t");
+			if (!reach[i]) {
+				out.println("not reachable");
+				continue;
+			}
+			if (all[i].length == notReachable) {
+				out.print("no path of at most " + maxLength + " hops");
+			}
+			else {
+				out.print("length " + all[i].length + ", " + all[i].paths.length + (all[i].truncated ? "+" : "") + " shortest path(s) ");
+				for (int[] p : all[i].paths) {
+					print(out, p);
+				}
+			}
+			out.print("; max weight " + heavy[i].weight + " ");
+			print(out, heavy[i].paths[0]);
+			out.println("");
+		}
+		out.flush();
+		System.out.println(reached + " pairs reachable, " + found + " within " + maxLength + " hops, mean length "
+				+ (found > 0 ? (double) hops / found : 0.0));
+	}
+
+	private void print(PrintStream out, int[] path) {
+		out.print("[");
+		for (int i = 0; i < path.length; i++) {
+			out.print((i > 0 ? ", " : "") + snap.getName(path[i]));
+		}
+		out.print("]");
+	}
+}
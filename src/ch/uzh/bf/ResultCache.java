@@ -0,0 +1,324 @@
+package ch.uzh.bf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+
+import ch.uzh.bf.Main.DynamicConfig;
+
+public class ResultCache {
+
+	/*
+	 * Analytics results of one graph, kept in a sidecar file so that a repeat run on
+	 * an unchanged graph loads them instead of recomputing. Results are indexed by the
+	 * dense ids of the GraphSnapshot they were computed on. The key is a fingerprint
+	 * of the snapshot (GraphSnapshot.fingerprint()) and of the settings the results
+	 * depend on; a file with another fingerprint is stale and replaced by save().
+	 * Sidecar format, little endian, sections 8-byte aligned:
+	 *   header (64 bytes): magic, version, numNodes, numComponents, sections (int), fingerprint (long)
+	 *   component       int[numNodes]     SCC ids           (if sections & bowtie)
+	 *   classes         byte[numNodes]    BOWTIE ordinals   (if sections & bowtie)
+	 *   influenceIndex  double[numNodes]  II_VAL            (if sections & ii)
+	 *   errorBound      double[numNodes]                    (if sections & ii)
+	 *   cumulative      double[numNodes]  cumulative II_VAL (if sections & cumulative)
+	 *   cumulativeError double[numNodes]                    (if sections & cumulative)
+	 * The most recently used results also stay in memory, up to maxBytes in total,
+	 * so repeated runs in the same process skip the file as well
+	 */
+	public static final int magic = 0x49495243; // "IIRC"
+	public static final int version = 1;
+	private static final int headerSize = 64;
+	private static final int bowtie = 1;
+	private static final int ii = 2;
+	private static final int cumulative = 4;
+
+	// In-memory layer, least recently used first
+	private static final long maxBytes = 256L << 20;
+	private static final LinkedHashMap<Long, ResultCache> recent = new LinkedHashMap<Long, ResultCache>(16, 0.75f, true);
+
+	private String file;
+	private long fingerprint;
+	private int numNodes;
+	private int sections;
+	private boolean dirty;
+
+	private int[] component;         // component[v] = id of the SCC containing v
+	private int numComponents;
+	private byte[] classes;          // classes[v] = StaticConfig.BowTie ordinal of v, -1 if none
+	private double[] influenceIndex;
+	private double[] errorBound;
+	private double[] cumulativeIndex; // Influence Index of the cumulativeTarget nodes
+	private double[] cumulativeError;
+
+	private ResultCache(String file, long fingerprint, int numNodes) {
+		this.file = file;
+		this.fingerprint = fingerprint;
+		this.numNodes = numNodes;
+	}
+
+	// *** Open
+	// Results for snap under cfg from memory or the sidecar file, empty if there are none
+	public static ResultCache open(String file, GraphSnapshot snap, DynamicConfig cfg) {
+		System.out.println("\n### Result cache " + file);
+		long start = System.nanoTime();
+		long fp = fingerprint(snap, cfg);
+		ResultCache cache;
+		synchronized (recent) {
+			cache = recent.get(fp);
+		}
+		if (cache != null) {
+			cache.file = file;
+			System.out.println("Found results in memory");
+		}
+		else {
+			try {
+				cache = read(file, fp);
+			}
+			catch (IOException e) {
+				System.out.println("Could not read " + file + ", recomputing: " + e.getMessage());
+			}
+			if (cache == null) {
+				cache = new ResultCache(file, fp, snap.getNumNodes());
+			}
+		}
+		Metrics.time("cache.open", start);
+		return cache;
+	}
+
+	// Snapshot content plus the settings that change the results
+	public static long fingerprint(GraphSnapshot snap, DynamicConfig cfg) {
+		long h = snap.fingerprint();
+		h = GraphSnapshot.mix(h, Double.doubleToLongBits(cfg.epsilon));
+		h = GraphSnapshot.mix(h, cfg.maxDepth);
+		h = GraphSnapshot.mix(h, cfg.cumulativeTarget.hashCode());
+		h = GraphSnapshot.mix(h, cfg.out.ordinal());
+		return h;
+	}
+
+	private static ResultCache read(String file, long fp) throws IOException {
+		if (!new File(file).exists()) {
+			System.out.println("No results yet");
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			if (ch.size() < headerSize) {
+				throw new IOException(file + " is not a result cache");
+			}
+			ByteBuffer header = map(ch, FileChannel.MapMode.READ_ONLY, 0, headerSize);
+			if (header.getInt() != magic || header.getInt() != version) {
+				System.out.println("Results are from another version, recomputing");
+				return null;
+			}
+			int n = header.getInt();
+			int c = header.getInt();
+			int s = header.getInt();
+			if (header.getLong() != fp) {
+				System.out.println("Graph or settings changed, recomputing");
+				return null;
+			}
+			long[] pos = layout(n, s);
+			if (ch.size() < pos[pos.length - 1]) {
+				throw new IOException(file + " is truncated");
+			}
+
+			ResultCache cache = new ResultCache(file, fp, n);
+			cache.sections = s;
+			if ((s & bowtie) != 0) {
+				cache.component = new int[n];
+				cache.numComponents = c;
+				cache.classes = new byte[n];
+				map(ch, FileChannel.MapMode.READ_ONLY, pos[0], 4L * n).asIntBuffer().get(cache.component);
+				map(ch, FileChannel.MapMode.READ_ONLY, pos[1], n).get(cache.classes);
+			}
+			if ((s & ii) != 0) {
+				cache.influenceIndex = readDoubles(ch, pos[2], n);
+				cache.errorBound = readDoubles(ch, pos[3], n);
+			}
+			if ((s & cumulative) != 0) {
+				cache.cumulativeIndex = readDoubles(ch, pos[4], n);
+				cache.cumulativeError = readDoubles(ch, pos[5], n);
+			}
+			remember(cache);
+			System.out.println("Found results" + ((s & bowtie) != 0 ? " bowtie" : "") + ((s & ii) != 0 ? " Influence Index" : "")
+					+ ((s & cumulative) != 0 ? " cumulative" : ""));
+			return cache;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	// *** Save
+	// Write the sidecar file if results were added since it was read. A temporary
+	// file is renamed over the old one, so readers never see a half written cache
+	public void save() throws IOException {
+		remember(this);
+		if (!dirty) {
+			return;
+		}
+		int n = numNodes;
+		long[] pos = layout(n, sections);
+		File tmp = new File(file + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			FileChannel ch = raf.getChannel();
+			raf.setLength(pos[pos.length - 1]);
+			ByteBuffer header = map(ch, FileChannel.MapMode.READ_WRITE, 0, headerSize);
+			header.putInt(magic).putInt(version).putInt(n).putInt(numComponents).putInt(sections).putLong(fingerprint);
+			if ((sections & bowtie) != 0) {
+				map(ch, FileChannel.MapMode.READ_WRITE, pos[0], 4L * n).asIntBuffer().put(component, 0, n);
+				map(ch, FileChannel.MapMode.READ_WRITE, pos[1], n).put(classes, 0, n);
+			}
+			if ((sections & ii) != 0) {
+				map(ch, FileChannel.MapMode.READ_WRITE, pos[2], 8L * n).asDoubleBuffer().put(influenceIndex, 0, n);
+				map(ch, FileChannel.MapMode.READ_WRITE, pos[3], 8L * n).asDoubleBuffer().put(errorBound, 0, n);
+			}
+			if ((sections & cumulative) != 0) {
+				map(ch, FileChannel.MapMode.READ_WRITE, pos[4], 8L * n).asDoubleBuffer().put(cumulativeIndex, 0, n);
+				map(ch, FileChannel.MapMode.READ_WRITE, pos[5], 8L * n).asDoubleBuffer().put(cumulativeError, 0, n);
+			}
+			ch.force(false);
+		}
+		finally {
+			raf.close();
+		}
+		File target = new File(file);
+		if (!tmp.renameTo(target) && !(target.delete() && tmp.renameTo(target))) {
+			throw new IOException("Could not replace " + file);
+		}
+		dirty = false;
+		System.out.println("\n### Saved results to " + file);
+	}
+
+	// Keep cache in memory, dropping the least recently used results beyond maxBytes
+	private static void remember(ResultCache cache) {
+		synchronized (recent) {
+			recent.remove(cache.fingerprint);
+			if (cache.bytes() > maxBytes) {
+				return;
+			}
+			recent.put(cache.fingerprint, cache);
+			long total = 0;
+			for (ResultCache c : recent.values()) {
+				total += c.bytes();
+			}
+			Iterator<ResultCache> eldest = recent.values().iterator();
+			while (total > maxBytes) {
+				total -= eldest.next().bytes();
+				eldest.remove();
+			}
+		}
+	}
+
+	// Heap size of the results
+	private long bytes() {
+		long[] pos = layout(numNodes, sections);
+		return pos[pos.length - 1] - headerSize;
+	}
+
+	// Start of each section (empty if absent) and (last entry) the file size
+	private static long[] layout(int n, int s) {
+		long[] size = new long[] {
+			(s & bowtie) != 0 ? 4L * n : 0, (s & bowtie) != 0 ? n : 0,
+			(s & ii) != 0 ? 8L * n : 0, (s & ii) != 0 ? 8L * n : 0,
+			(s & cumulative) != 0 ? 8L * n : 0, (s & cumulative) != 0 ? 8L * n : 0 };
+		long[] pos = new long[size.length + 1];
+		pos[0] = headerSize;
+		for (int i = 0; i < size.length; i++) {
+			pos[i + 1] = align(pos[i] + size[i]);
+		}
+		return pos;
+	}
+
+	private static long align(long pos) {
+		return (pos + 7) & ~7L;
+	}
+
+	private static double[] readDoubles(FileChannel ch, long pos, int n) throws IOException {
+		double[] a = new double[n];
+		map(ch, FileChannel.MapMode.READ_ONLY, pos, 8L * n).asDoubleBuffer().get(a);
+		return a;
+	}
+
+	private static MappedByteBuffer map(FileChannel ch, FileChannel.MapMode mode, long pos, long size) throws IOException {
+		MappedByteBuffer buffer = ch.map(mode, pos, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	// *** Results
+	public boolean hasBowtie() {
+		return (sections & bowtie) != 0;
+	}
+
+	public boolean hasInfluenceIndex() {
+		return (sections & ii) != 0;
+	}
+
+	public boolean hasCumulative() {
+		return (sections & cumulative) != 0;
+	}
+
+	public void setBowtie(int[] component, int numComponents, byte[] classes) {
+		this.component = component;
+		this.numComponents = numComponents;
+		this.classes = classes;
+		sections |= bowtie;
+		dirty = true;
+	}
+
+	public void setInfluenceIndex(double[] influenceIndex, double[] errorBound) {
+		this.influenceIndex = influenceIndex;
+		this.errorBound = errorBound;
+		sections |= ii;
+		dirty = true;
+	}
+
+	public void setCumulative(double[] cumulativeIndex, double[] cumulativeError) {
+		this.cumulativeIndex = cumulativeIndex;
+		this.cumulativeError = cumulativeError;
+		sections |= cumulative;
+		dirty = true;
+	}
+
+	// Getters
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	public int[] getComponentIds() {
+		return component;
+	}
+
+	public int getNumComponents() {
+		return numComponents;
+	}
+
+	public byte[] getClasses() {
+		return classes;
+	}
+
+	public double[] getInfluenceIndex() {
+		return influenceIndex;
+	}
+
+	public double[] getErrorBound() {
+		return errorBound;
+	}
+
+	public double[] getCumulative() {
+		return cumulativeIndex;
+	}
+
+	public double[] getCumulativeError() {
+		return cumulativeError;
+	}
+}
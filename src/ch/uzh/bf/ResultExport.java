@@ -0,0 +1,314 @@
+package ch.uzh.bf;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ResultExport {
+
+	/*
+	 * Per-node results of a run written to a file by a background thread, so the
+	 * compute thread can go on with the next stage. Rows are in dense id order of a
+	 * GraphSnapshot; the writer streams through fixed-size buffers and never copies
+	 * a whole column. Columns not set are left out.
+	 * A .csv or .tsv file gets one delimited row per node:
+	 *   id, name, bowtie, influenceIndex, errorBound, centrality
+	 * Any other file gets the columnar binary format, little endian, sections 8-byte
+	 * aligned like SnapshotFile:
+	 *   header (64 bytes): magic, version, numNodes, columns (int), nameBytes (long)
+	 *   nodeIds        long[numNodes]      Neo4j ids
+	 *   classes        byte[numNodes]      BOWTIE ordinals, -1 if none  (if columns & bowtie)
+	 *   influenceIndex double[numNodes]                                 (if columns & ii)
+	 *   errorBound     double[numNodes]                                 (if columns & ii)
+	 *   centrality     double[numNodes]                                 (if columns & centrality)
+	 *   nameOffsets    int[numNodes + 1]   (byte offsets into the names)
+	 *   names          byte[nameBytes]     (UTF-8)
+	 */
+	public static final int magic = 0x49495258; // "IIRX"
+	public static final int version = 1;
+	private static final int headerSize = 64;
+	private static final int bowtie = 1;
+	private static final int ii = 2;
+	private static final int centrality = 4;
+	private static final int bufferSize = 1 << 16;
+
+	private String file;
+	private GraphSnapshot snap;
+	private int columns;
+	private byte[] classes;          // classes[v] = StaticConfig.BowTie ordinal of v, -1 if none
+	private double[] influenceIndex;
+	private double[] errorBound;     // null if not pruned
+	private double[] centralityIndex;
+
+	private ExecutorService writer;
+	private Future<Void> done;
+
+	public ResultExport(String file, GraphSnapshot snap) {
+		this.file = file;
+		this.snap = snap;
+	}
+
+	// *** Columns, the arrays are read by the writer and must not change until finish()
+	public void setBowtie(byte[] classes) {
+		this.classes = classes;
+		columns |= bowtie;
+	}
+
+	public void setInfluenceIndex(double[] influenceIndex, double[] errorBound) {
+		this.influenceIndex = influenceIndex;
+		this.errorBound = errorBound;
+		columns |= ii;
+	}
+
+	public void setCentrality(double[] centrality) {
+		this.centralityIndex = centrality;
+		columns |= ResultExport.centrality;
+	}
+
+	// *** Write in the background
+	public void start() {
+		System.out.println("\n### Exporting results to " + file);
+		writer = Executors.newSingleThreadExecutor();
+		done = writer.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				long start = System.nanoTime();
+				if (file.endsWith(".csv") || file.endsWith(".tsv") || file.endsWith(".tab")) {
+					writeDelimited(EdgeListLoader.delimiterOf(file));
+				}
+				else {
+					writeColumnar();
+				}
+				Metrics.time("export", start);
+				return null;
+			}
+		});
+		writer.shutdown();
+	}
+
+	// Wait for the writer
+	public void finish() throws IOException {
+		if (done == null) {
+			return;
+		}
+		try {
+			done.get();
+			System.out.println("\n### Exported " + snap.getNumNodes() + " nodes to " + file);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Export interrupted", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException("Export failed", e.getCause());
+		}
+		finally {
+			done = null;
+		}
+	}
+
+	// *** Delimited text
+	private void writeDelimited(char delimiter) throws IOException {
+		StaticConfig.BowTie[] names = StaticConfig.BowTie.values();
+		LongBuffer nodeIds = snap.getNodeIds();
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), bufferSize);
+		try {
+			out.write("id" + delimiter + "name");
+			if ((columns & bowtie) != 0) {
+				out.write(delimiter + "bowtie");
+			}
+			if ((columns & ii) != 0) {
+				out.write(delimiter + "influenceIndex" + delimiter + "errorBound");
+			}
+			if ((columns & centrality) != 0) {
+				out.write(delimiter + "centrality");
+			}
+			out.write('\n');
+			StringBuilder row = new StringBuilder();
+			for (int v = 0; v < snap.getNumNodes(); v++) {
+				row.setLength(0);
+				row.append(nodeIds.get(v)).append(delimiter);
+				quote(row, snap.getName(v), delimiter);
+				if ((columns & bowtie) != 0) {
+					row.append(delimiter);
+					if (classes[v] >= 0) {
+						row.append(names[classes[v]]);
+					}
+				}
+				if ((columns & ii) != 0) {
+					row.append(delimiter).append(influenceIndex[v]).append(delimiter).append(errorBound != null ? errorBound[v] : 0.0);
+				}
+				if ((columns & centrality) != 0) {
+					row.append(delimiter).append(centralityIndex[v]);
+				}
+				row.append('\n');
+				out.append(row);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	// Names with the delimiter, quotes or line breaks are quoted, quotes doubled
+	private static void quote(StringBuilder row, String name, char delimiter) {
+		if (name.indexOf(delimiter) < 0 && name.indexOf('"') < 0 && name.indexOf('\n') < 0 && name.indexOf('\r') < 0) {
+			row.append(name);
+			return;
+		}
+		row.append('"');
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c == '"') {
+				row.append('"');
+			}
+			row.append(c);
+		}
+		row.append('"');
+	}
+
+	// *** Columnar binary
+	private void writeColumnar() throws IOException {
+		int n = snap.getNumNodes();
+		long[] pos = layout(n, columns);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel ch = raf.getChannel();
+			raf.setLength(pos[pos.length - 1]);
+
+			// Fixed width columns
+			LongBuffer nodeIds = snap.getNodeIds();
+			long at = pos[0];
+			for (int v = 0; v < n; v++) {
+				at = put(ch, buffer, at, 8);
+				buffer.putLong(nodeIds.get(v));
+			}
+			drain(ch, buffer, at);
+			if ((columns & bowtie) != 0) {
+				at = pos[1];
+				for (int v = 0; v < n; v++) {
+					at = put(ch, buffer, at, 1);
+					buffer.put(classes[v]);
+				}
+				drain(ch, buffer, at);
+			}
+			if ((columns & ii) != 0) {
+				writeDoubles(ch, buffer, pos[2], influenceIndex, n);
+				writeDoubles(ch, buffer, pos[3], errorBound, n);
+			}
+			if ((columns & centrality) != 0) {
+				writeDoubles(ch, buffer, pos[4], centralityIndex, n);
+			}
+
+			// Names go to the end of the file, their offsets in the same pass
+			ByteBuffer names = ByteBuffer.allocateDirect(bufferSize);
+			long nameAt = pos[6];
+			long nameBytes = 0;
+			at = pos[5];
+			at = put(ch, buffer, at, 4);
+			buffer.putInt(0);
+			for (int v = 0; v < n; v++) {
+				byte[] name = snap.getName(v).getBytes(StandardCharsets.UTF_8);
+				nameBytes += name.length;
+				if (nameBytes > Integer.MAX_VALUE) {
+					throw new IllegalStateException("Names of " + n + " nodes exceed 2 GB");
+				}
+				int i = 0;
+				while (i < name.length) {
+					nameAt = put(ch, names, nameAt, 1);
+					int len = Math.min(name.length - i, names.remaining());
+					names.put(name, i, len);
+					i += len;
+				}
+				at = put(ch, buffer, at, 4);
+				buffer.putInt((int) nameBytes);
+			}
+			drain(ch, buffer, at);
+			drain(ch, names, nameAt);
+			raf.setLength(pos[6] + nameBytes);
+
+			ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(magic).putInt(version).putInt(n).putInt(columns).putLong(nameBytes);
+			header.clear();
+			write(ch, header, 0);
+			ch.force(false);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private static void writeDoubles(FileChannel ch, ByteBuffer buffer, long at, double[] a, int n) throws IOException {
+		for (int v = 0; v < n; v++) {
+			at = put(ch, buffer, at, 8);
+			buffer.putDouble(a != null ? a[v] : 0.0);
+		}
+		drain(ch, buffer, at);
+	}
+
+	// Make room for size bytes, writing the buffer out at file position at if full.
+	// Returns the file position of the buffer start
+	private static long put(FileChannel ch, ByteBuffer buffer, long at, int size) throws IOException {
+		if (buffer.remaining() < size) {
+			return drain(ch, buffer, at);
+		}
+		return at;
+	}
+
+	private static long drain(FileChannel ch, ByteBuffer buffer, long at) throws IOException {
+		buffer.flip();
+		at += write(ch, buffer, at);
+		buffer.clear();
+		return at;
+	}
+
+	private static int write(FileChannel ch, ByteBuffer buffer, long at) throws IOException {
+		int size = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			ch.write(buffer, at + size - buffer.remaining());
+		}
+		return size;
+	}
+
+	// Start of each section (empty if absent) and (last entry) the start of the names
+	private static long[] layout(int n, int s) {
+		long[] size = new long[] {
+			8L * n, (s & bowtie) != 0 ? n : 0,
+			(s & ii) != 0 ? 8L * n : 0, (s & ii) != 0 ? 8L * n : 0,
+			(s & centrality) != 0 ? 8L * n : 0, 4L * (n + 1) };
+		long[] pos = new long[size.length + 1];
+		pos[0] = headerSize;
+		for (int i = 0; i < size.length; i++) {
+			pos[i + 1] = align(pos[i] + size[i]);
+		}
+		return pos;
+	}
+
+	private static long align(long pos) {
+		return (pos + 7) & ~7L;
+	}
+
+	// *** Console output of per-node lists
+	// One buffered stream instead of one System.out call per node, flush when done
+	public static PrintStream console() {
+		return new PrintStream(new BufferedOutputStream(System.out, bufferSize), false);
+	}
+}
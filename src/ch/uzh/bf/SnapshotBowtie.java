@@ -0,0 +1,150 @@
+package ch.uzh.bf;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+public class SnapshotBowtie {
+
+	/*
+	 * Bowtie analysis on a GraphSnapshot, without Neo4j: same components as
+	 * DetectBowtie (SCCs by ParallelScc, IN/OUT/TT/OCC by BFS from the largest SCC),
+	 * kept as one class ordinal of StaticConfig.BowTie per node
+	 */
+	private GraphSnapshot snap;
+	private int threads;
+
+	private int[] component;         // component[v] = id of strong component containing v
+	private int numComponents;
+	private byte[] classes;          // classes[v] = StaticConfig.BowTie ordinal of v
+
+	public SnapshotBowtie(GraphSnapshot snap, int threads) {
+		System.out.println("\n### Detect bowtie");
+		this.snap = snap;
+		this.threads = Math.max(1, threads);
+	}
+
+	public void run() {
+		int n = snap.getNumNodes();
+		IntBuffer offsets = snap.getOffsets();
+		IntBuffer targets = snap.getTargets();
+
+		// Upstream neighbours
+		IntBuffer inOffsets = snap.getInOffsets();
+		IntBuffer sources = snap.getSources();
+
+		// SCC and LCC
+		System.out.println("# Bowtie analysis: SCC and LCC");
+		long start = System.nanoTime();
+		boolean[] exists = new boolean[n];
+		Arrays.fill(exists, true);
+		ParallelScc scc = new ParallelScc(offsets, targets, inOffsets, sources, exists, threads);
+		component = scc.run();
+		numComponents = scc.getCount();
+		Metrics.time("bowtie.scc", start);
+		Metrics.count("bowtie.components", numComponents);
+		int[] compSize = new int[numComponents];
+		for (int v = 0; v < n; v++) {
+			compSize[component[v]]++;
+		}
+		int maxSccSize = 0;
+		int mycount = 0;
+		for (int c = 0; c < numComponents; c++) {
+			if (compSize[c] > 1) {
+				maxSccSize = Math.max(maxSccSize, compSize[c]);
+				mycount++;
+			}
+		}
+		System.out.println(mycount + " component(s) (with more than one node)");
+		BitSet lscc = new BitSet(n);
+		if (maxSccSize > 1) {
+			System.out.println("Found largest SCC with " + maxSccSize + " nodes");
+			for (int v = 0; v < n; v++) {
+				if (compSize[component[v]] == maxSccSize) {
+					lscc.set(v);
+				}
+			}
+		}
+
+		// IN, OUT, TT, OCC
+		start = System.nanoTime();
+		int[] queue = new int[n];
+		BitSet out = DetectBowtie.bfs(lscc, offsets, targets, null, null, queue);
+		out.andNot(lscc);
+		BitSet in = DetectBowtie.bfs(lscc, inOffsets, sources, null, null, queue);
+		in.andNot(lscc);
+		BitSet lcc = DetectBowtie.bfs(lscc, offsets, targets, inOffsets, sources, queue);
+
+		classes = new byte[n];
+		for (int v = 0; v < n; v++) {
+			StaticConfig.BowTie bt;
+			if (in.get(v)) {
+				bt = StaticConfig.BowTie.IN;
+			} else if (lscc.get(v)) {
+				bt = StaticConfig.BowTie.SCC;
+			} else if (out.get(v)) {
+				bt = StaticConfig.BowTie.OUT;
+			} else if (lcc.get(v)) {
+				bt = StaticConfig.BowTie.TT;
+			} else {
+				bt = StaticConfig.BowTie.OCC;
+			}
+			classes[v] = (byte) bt.ordinal();
+		}
+		Metrics.time("bowtie.classes", start);
+		evaluate();
+	}
+
+	// Components of an earlier run with the same graph (see ResultCache) instead of run()
+	public void restore(int[] component, int numComponents, byte[] classes) {
+		this.component = component;
+		this.numComponents = numComponents;
+		this.classes = classes;
+		System.out.println(numComponents + " component(s) from the result cache");
+		evaluate();
+	}
+
+	// *** Output results to console
+	private void evaluate() {
+		double[] val = new double[StaticConfig.BowTie.values().length];
+		int[] cnt = new int[val.length];
+		DoubleBuffer values = snap.getValues();
+		for (int v = 0; v < classes.length; v++) {
+			cnt[classes[v]]++;
+			val[classes[v]] += values.get(v);
+		}
+		System.out.println("# Bowtie analysis: stats and value");
+		double total = 0.0;
+		for (StaticConfig.BowTie bt : StaticConfig.BowTie.values()) {
+			System.out.println(bt + " nodes " + cnt[bt.ordinal()] + "\tval " + val[bt.ordinal()]);
+			if (bt != StaticConfig.BowTie.OCC) {
+				total += val[bt.ordinal()];
+			}
+		}
+		System.out.println("LCC nodes " + (classes.length - cnt[StaticConfig.BowTie.OCC.ordinal()]));
+		System.out.println("Total val " + total);
+	}
+
+	// Getters
+	public int[] getComponentIds() {
+		return component;
+	}
+
+	public int getNumComponents() {
+		return numComponents;
+	}
+
+	public byte[] getClasses() {
+		return classes;
+	}
+
+	// Upstream relationships of the snapshot
+	public IntBuffer getInOffsets() {
+		return snap.getInOffsets();
+	}
+
+	public IntBuffer getSources() {
+		return snap.getSources();
+	}
+}
@@ -0,0 +1,158 @@
+package ch.uzh.bf;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+public class SnapshotFile {
+
+	/*
+	 * Binary on-disk format of a GraphSnapshot, little endian:
+	 *   header (64 bytes): magic, version, numNodes, numRels (int), nameBytes (long)
+	 *   offsets     int[numNodes + 1]
+	 *   targets     int[numRels]
+	 *   weights     double[numRels]
+	 *   values      double[numNodes]
+	 *   nodeIds     long[numNodes]
+	 *   nameOffsets int[numNodes + 1]       (byte offsets into the names)
+	 *   names       byte[nameBytes]         (UTF-8)
+	 * Every section starts at a multiple of 8 bytes and is mapped on its own with
+	 * FileChannel.map, so sections may be up to 2 GB each.
+	 * Reading only maps the sections: the GraphSnapshot reads through the mappings,
+	 * nothing is copied to the heap and pages are loaded by the OS when the
+	 * traversals touch them. Names are only decoded when asked for
+	 */
+	public static final int magic = 0x49494753; // "IIGS"
+	public static final int version = 1;
+	private static final int headerSize = 64;
+
+	private SnapshotFile() {}
+
+	// *** Write
+	public static void write(GraphSnapshot snap, String file) throws IOException {
+		System.out.println("\n### Writing graph snapshot to " + file);
+		long start = System.currentTimeMillis();
+		int n = snap.getNumNodes();
+		int m = snap.getNumRels();
+
+		// Name dictionary
+		int[] nameOffsets = new int[n + 1];
+		for (int v = 0; v < n; v++) {
+			nameOffsets[v + 1] = nameOffsets[v] + snap.getName(v).getBytes(StandardCharsets.UTF_8).length;
+		}
+		long[] pos = layout(n, m, nameOffsets[n]);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel ch = raf.getChannel();
+			raf.setLength(pos[pos.length - 1]);
+
+			ByteBuffer header = map(ch, FileChannel.MapMode.READ_WRITE, 0, headerSize);
+			header.putInt(magic).putInt(version).putInt(n).putInt(m).putLong(nameOffsets[n]);
+
+			IntBuffer offsets = snap.getOffsets().duplicate();
+			IntBuffer targets = snap.getTargets().duplicate();
+			DoubleBuffer weights = snap.getWeights().duplicate();
+			DoubleBuffer values = snap.getValues().duplicate();
+			LongBuffer nodeIds = snap.getNodeIds().duplicate();
+			offsets.limit(n + 1).position(0);
+			targets.limit(m).position(0);
+			weights.limit(m).position(0);
+			values.limit(n).position(0);
+			nodeIds.limit(n).position(0);
+			map(ch, FileChannel.MapMode.READ_WRITE, pos[0], 4L * (n + 1)).asIntBuffer().put(offsets);
+			map(ch, FileChannel.MapMode.READ_WRITE, pos[1], 4L * m).asIntBuffer().put(targets);
+			map(ch, FileChannel.MapMode.READ_WRITE, pos[2], 8L * m).asDoubleBuffer().put(weights);
+			map(ch, FileChannel.MapMode.READ_WRITE, pos[3], 8L * n).asDoubleBuffer().put(values);
+			map(ch, FileChannel.MapMode.READ_WRITE, pos[4], 8L * n).asLongBuffer().put(nodeIds);
+			map(ch, FileChannel.MapMode.READ_WRITE, pos[5], 4L * (n + 1)).asIntBuffer().put(nameOffsets);
+			ByteBuffer names = map(ch, FileChannel.MapMode.READ_WRITE, pos[6], nameOffsets[n]);
+			for (int v = 0; v < n; v++) {
+				names.put(snap.getName(v).getBytes(StandardCharsets.UTF_8));
+			}
+			ch.force(false);
+		}
+		finally {
+			raf.close();
+		}
+		System.out.println("Wrote " + n + " nodes and " + m + " rels in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	// *** Read
+	public static GraphSnapshot read(String file) throws IOException {
+		System.out.println("\n### Reading graph snapshot from " + file);
+		long start = System.currentTimeMillis();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			if (ch.size() < headerSize) {
+				throw new IOException(file + " is not a graph snapshot");
+			}
+			ByteBuffer header = map(ch, FileChannel.MapMode.READ_ONLY, 0, headerSize);
+			if (header.getInt() != magic) {
+				throw new IOException(file + " is not a graph snapshot");
+			}
+			int fileVersion = header.getInt();
+			if (fileVersion != version) {
+				throw new IOException(file + " has snapshot version " + fileVersion + ", expected " + version);
+			}
+			int n = header.getInt();
+			int m = header.getInt();
+			long nameBytes = header.getLong();
+			long[] pos = layout(n, m, nameBytes);
+			if (ch.size() < pos[pos.length - 1]) {
+				throw new IOException(file + " is truncated");
+			}
+
+			IntBuffer offsets = map(ch, FileChannel.MapMode.READ_ONLY, pos[0], 4L * (n + 1)).asIntBuffer();
+			IntBuffer targets = map(ch, FileChannel.MapMode.READ_ONLY, pos[1], 4L * m).asIntBuffer();
+			DoubleBuffer weights = map(ch, FileChannel.MapMode.READ_ONLY, pos[2], 8L * m).asDoubleBuffer();
+			DoubleBuffer values = map(ch, FileChannel.MapMode.READ_ONLY, pos[3], 8L * n).asDoubleBuffer();
+			LongBuffer nodeIds = map(ch, FileChannel.MapMode.READ_ONLY, pos[4], 8L * n).asLongBuffer();
+			IntBuffer nameOffsets = map(ch, FileChannel.MapMode.READ_ONLY, pos[5], 4L * (n + 1)).asIntBuffer();
+			ByteBuffer names = map(ch, FileChannel.MapMode.READ_ONLY, pos[6], nameBytes);
+
+			GraphSnapshot snap = new GraphSnapshot(n, m, offsets, targets, weights, values, nodeIds, nameOffsets, names);
+			System.out.println("Read " + n + " nodes and " + m + " rels in " + (System.currentTimeMillis() - start) + " ms");
+			return snap;
+		}
+		finally {
+			// Mappings stay valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	// Start of each section and (last entry) the file size
+	private static long[] layout(int n, int m, long nameBytes) {
+		long[] pos = new long[8];
+		pos[0] = headerSize;
+		pos[1] = align(pos[0] + 4L * (n + 1));
+		pos[2] = align(pos[1] + 4L * m);
+		pos[3] = align(pos[2] + 8L * m);
+		pos[4] = align(pos[3] + 8L * n);
+		pos[5] = align(pos[4] + 8L * n);
+		pos[6] = align(pos[5] + 4L * (n + 1));
+		pos[7] = pos[6] + nameBytes;
+		return pos;
+	}
+
+	private static long align(long pos) {
+		return (pos + 7) & ~7L;
+	}
+
+	private static MappedByteBuffer map(FileChannel ch, FileChannel.MapMode mode, long pos, long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Snapshot section of " + size + " bytes exceeds 2 GB");
+		}
+		MappedByteBuffer buffer = ch.map(mode, pos, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+}
@@ -0,0 +1,1068 @@
+package ch.uzh.bf;
+
+import java.io.PrintStream;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Neo4j Version 2.2.5
+import org.neo4j.graphdb.Node;
+
+import ch.uzh.bf.Main.DynamicConfig;
+
+public class SnapshotInfluenceIndex {
+
+	/*
+	 * Influence Index computed on a GraphSnapshot instead of the Neo4j store.
+	 * Same algorithm as InfluenceIndex.wrapper() / crawlDownstream(), but all
+	 * weights and values come from the buffers of the snapshot and the results
+	 * are written back to Neo4j in one pass
+	 */
+
+	private DynamicConfig cfg;
+	private DecimalFormat myFormatter;
+
+	private GraphSnapshot snap;
+	private IntBuffer offsets;
+	private IntBuffer targets;
+	private DoubleBuffer weights;
+	private DoubleBuffer values;
+
+	private boolean[] tagged;        // tagged[v] = v is a target of the cumulative Influence Index
+	private double[] influenceIndex; // influenceIndex[v] = Influence Index of v
+
+	private boolean condensedRun;    // results come from the SCC condensation
+	private boolean scored;          // results of every node are final (wrapper(), restore(), update())
+	private boolean[] updated;       // updated[v] = v was recomputed by update()
+
+	// Pruning
+	private boolean pruning;
+	private double[] walkBound;      // walkBound[v] = upper bound of value flowing into v, incl. its own
+	private double[] errorBound;     // errorBound[v] = upper bound of Influence Index pruned away for v
+
+	// SCC condensation
+	private int[] component;         // component[v] = id of the SCC containing v
+	private int numComponents;
+
+	// Many target sets in one sweep
+	private TargetSets targetSets;
+	private int[] setOffsets;
+	private int[] setIds;
+	private double[] setResult;      // setResult[i] = cumulative Influence Index of node v for set setIds[i]
+	private double[] setError;       // setError[i] = its error bound if pruned
+	private double[] targetInfluenceIndex; // targetInfluenceIndex[s] = cumulative Influence Index of set s
+	private double[] targetErrorBound;     // targetErrorBound[s] = its error bound if pruned
+
+	// Per-run worker state
+	private ExecutorService pool;
+	private ThreadLocal<Trail> trails;
+	private List<Trail> allTrails;   // all trails of this run, for the Metrics summary
+	private String stage;            // name of the run in the Metrics summary
+
+	public SnapshotInfluenceIndex(DynamicConfig cfg, GraphSnapshot snap) {
+		myFormatter = new DecimalFormat("###.##########");
+		this.cfg = cfg;
+		this.snap = snap;
+		offsets = snap.getOffsets();
+		targets = snap.getTargets();
+		weights = snap.getWeights();
+		values = snap.getValues();
+		tagged = new boolean[snap.getNumNodes()];
+		influenceIndex = new double[snap.getNumNodes()];
+		pruning = cfg.epsilon > 0.0 || cfg.maxDepth > 0;
+		errorBound = new double[snap.getNumNodes()];
+	}
+
+	// *** Output results to console
+	// Influence Index
+	public void evaluate() {
+		System.out.println("\n### Influence Index (by node name)");
+		double ii = 0.0;
+		PrintStream out = ResultExport.console();
+		for (int v = 0; v < snap.getNumNodes(); v++) {
+			ii += influenceIndex[v];
+			if (cfg.printNodes) {
+				out.print(snap.getName(v) + ": " + myFormatter.format(influenceIndex[v]) + "; ");
+			}
+		}
+		out.flush();
+		System.out.println("\nTotal Influence Index value:\t" + ii);
+		if (pruning) {
+			System.out.println("Pruned with epsilon " + cfg.epsilon + " and max depth " + cfg.maxDepth + ", error bound:\t" + totalErrorBound());
+		}
+	}
+
+	// Cumulative Influence Index
+	public void evaluateCumulative() {
+		System.out.println("\n### Cumulative Influence Index");
+		double ii = 0.0;
+		int cnt = 0;
+		double val = 0.0;
+		for (int v = 0; v < snap.getNumNodes(); v++) {
+			val += values.get(v);
+			if (tagged[v]) {
+				if (influenceIndex[v] > 0) {
+					ii += influenceIndex[v];
+				}
+				cnt++;
+			}
+		}
+		System.out.println("For the set of " + cnt + " " + cfg.cumulativeTarget + " nodes: " + ii + "\t" + ii/val*100.0 + "%");
+		if (pruning) {
+			System.out.println("Pruned with epsilon " + cfg.epsilon + " and max depth " + cfg.maxDepth + ", error bound:\t" + totalErrorBound());
+		}
+	}
+
+	private double totalErrorBound() {
+		double err = 0.0;
+		for (int v = 0; v < snap.getNumNodes(); v++) {
+			if (!cfg.cumulativeInfluenceIndex || tagged[v]) {
+				err += errorBound[v];
+			}
+		}
+		return err;
+	}
+
+	// *** Tag nodes for cumulative Influence Index
+	// Needs an open transaction
+	public void tag() {
+		System.out.println("\n### Tagging");
+		LongBuffer nodeIds = snap.getNodeIds();
+		int cnt = 0;
+		for (int v = 0; v < snap.getNumNodes(); v++) {
+			Node sink = MyNeo4j.gdbs.getNodeById(nodeIds.get(v));
+			tagged[v] = sink.getProperty(StaticConfig.nodeBT).equals(cfg.cumulativeTarget.toString());
+			if (tagged[v]) {
+				cnt++;
+			}
+		}
+		System.out.println("Restrict to " + cfg.cumulativeTarget + " nodes, found " + cnt);
+	}
+
+	// Same from the bowtie classes of a SnapshotBowtie, without Neo4j
+	public void tag(byte[] classes) {
+		System.out.println("\n### Tagging");
+		int target = StaticConfig.BowTie.valueOf(cfg.cumulativeTarget).ordinal();
+		int cnt = 0;
+		for (int v = 0; v < snap.getNumNodes(); v++) {
+			tagged[v] = classes[v] == target;
+			if (tagged[v]) {
+				cnt++;
+			}
+		}
+		System.out.println("Restrict to " + cfg.cumulativeTarget + " nodes, found " + cnt);
+	}
+
+	// *** Write Influence Index to II_VAL (and the error bound to II_ERR if pruned)
+	// After update() only the recomputed nodes are written. A cumulative run also
+	// sets II_VAL of the untagged nodes to 0 and removes their II_ERR, in the same
+	// batches, so no value of an earlier run is left behind
+	public void writeBack() {
+		BatchWriter writer = new BatchWriter(cfg.batchSize);
+		if (updated == null && cfg.cumulativeInfluenceIndex) {
+			LongBuffer nodeIds = snap.getNodeIds();
+			for (int v = 0; v < snap.getNumNodes(); v++) {
+				long id = nodeIds.get(v);
+				if (tagged[v]) {
+					writer.setProperty(id, StaticConfig.nodeInfluenceIndex, influenceIndex[v]);
+					if (pruning) {
+						writer.setProperty(id, StaticConfig.nodeInfluenceIndexError, errorBound[v]);
+					}
+				}
+				else {
+					writer.setProperty(id, StaticConfig.nodeInfluenceIndex, 0.0);
+					writer.removeProperty(id, StaticConfig.nodeInfluenceIndexError);
+				}
+			}
+		}
+		else {
+			snap.writeBack(writer, StaticConfig.nodeInfluenceIndex, influenceIndex, updated);
+			if (pruning) {
+				snap.writeBack(writer, StaticConfig.nodeInfluenceIndexError, errorBound, updated);
+			}
+		}
+		writer.close();
+	}
+
+	// *** Main Influence Index code
+	// See Algorithm 1 and 2 in Supplementary Materials of publication
+	public void wrapper() {
+		long start = System.nanoTime();
+		stage = cfg.cumulativeInfluenceIndex ? "cumulative" : "ii";
+		if (pruning) {
+			walkBound = computeWalkBound();
+		}
+		boolean condensed = cfg.condensation && component != null;
+		if (condensed && pruning) {
+			System.out.println("Pruning requested, using full path enumeration instead of SCC condensation");
+			condensed = false;
+		}
+		compute(condensed, null);
+		scored = true;
+		Metrics.time(stage, start);
+	}
+
+	// Results of an earlier run with the same settings (see ResultCache) instead of wrapper()
+	public void restore(double[] influenceIndex, double[] errorBound) {
+		this.influenceIndex = Arrays.copyOf(influenceIndex, influenceIndex.length);
+		this.errorBound = Arrays.copyOf(errorBound, errorBound.length);
+		// Exact for every node, as needed downstream by a condensed update
+		condensedRun = !pruning && !cfg.cumulativeInfluenceIndex;
+		scored = true;
+	}
+
+	// Influence Index of all nodes, or only those with restrict[v] set
+	private void compute(boolean condensed, boolean[] restrict) {
+		condensedRun = condensed;
+		startWorkers(0);
+		try {
+			if (condensed) {
+				condensedWrapper(restrict);
+			}
+			else {
+				// Loop through whole graph
+				int n = snap.getNumNodes();
+				int cnt = 0;
+				int[] sources = new int[n];
+				for (int v = 0; v < n; v++) {
+					if (restrict == null || restrict[v]) {
+						sources[cnt++] = v;
+					}
+				}
+				forEachSource(sources, 0, cnt, false);
+			}
+		}
+		finally {
+			stopWorkers();
+		}
+	}
+
+	// Worker pool and per-thread trail state for this run, with room for
+	// numSets target sets if > 0
+	private void startWorkers(final int numSets) {
+		final int n = snap.getNumNodes();
+		final List<Trail> created = new ArrayList<Trail>();
+		trails = new ThreadLocal<Trail>() {
+			protected Trail initialValue() {
+				Trail trail = new Trail(n);
+				if (numSets > 0) {
+					trail.withTargets(numSets);
+				}
+				synchronized (created) {
+					created.add(trail);
+				}
+				return trail;
+			}
+		};
+		allTrails = created;
+		pool = cfg.threads > 1 ? Executors.newFixedThreadPool(cfg.threads) : null;
+	}
+
+	private void stopWorkers() {
+		if (pool != null) {
+			pool.shutdownNow();
+			pool = null;
+		}
+		synchronized (allTrails) {
+			for (Trail trail : allTrails) {
+				trail.probe.flush(stage);
+			}
+		}
+		allTrails = null;
+		trails = null;
+	}
+
+	// *** Top-k most influential nodes
+	// The Influence Index sums over simple paths, a subset of all walks, so
+	//   II(v) <= (A b)(v) = b(v) - value(v), with b = (I-A)^{-1} value
+	// the walk bound of the pruning: the out-strength weighted value downstream of v.
+	// Candidates are visited by descending bound and get scored in batches; once the
+	// bound of the next candidate is below the k-th score no other node can enter the
+	// top k. Scoring follows the settings of wrapper():
+	// - SCC ids set and no pruning: exact, on the condensation restricted to the
+	//   downstream closure of the candidates (Component)
+	// - pruning: the pruned scores are lower bounds, so the cut-off stays valid and
+	//   evaluateTopK() reports their error bounds
+	// - otherwise: exact simple path enumeration per candidate (Single),
+	//   exponential in the size of the SCCs, only for small or acyclic networks
+	// Scores already known for every node (wrapper(), restore()) are ranked directly
+	public int[] topK(int k) {
+		System.out.println("\n### Top " + k + " Influence Index");
+		long start = System.nanoTime();
+		stage = "topk";
+		int n = snap.getNumNodes();
+		int[] best = new int[Math.max(0, k)];
+		int size = 0;
+		int cnt = 0;
+		int next = 0;
+		if (scored) {
+			for (int v = 0; v < n; v++) {
+				if (!cfg.cumulativeInfluenceIndex || tagged[v]) {
+					size = offer(best, size, v);
+					cnt++;
+				}
+			}
+			next = cnt;
+		}
+		else if (k > 0) {
+			if (pruning) {
+				walkBound = computeWalkBound();
+			}
+			double[] bound = computeTopKBound();
+			// Candidates by descending bound, ties by id: bound rounded up to a float in
+			// the high word of the sort key, only tagged nodes if cumulative
+			long[] order = new long[n];
+			for (int v = 0; v < n; v++) {
+				if (!cfg.cumulativeInfluenceIndex || tagged[v]) {
+					float f = (float) bound[v];
+					if (f < bound[v]) {
+						f = Math.nextUp(f);
+					}
+					order[cnt++] = ((long) (Integer.MAX_VALUE - Float.floatToIntBits(f)) << 32) | v;
+				}
+			}
+			Arrays.sort(order, 0, cnt);
+			int[] candidates = new int[cnt];
+			for (int i = 0; i < cnt; i++) {
+				candidates[i] = (int) order[i];
+			}
+			order = null;
+
+			boolean condensed = component != null && !pruning;
+			boolean[] done = condensed ? new boolean[n] : null;
+			int batch = Math.max(16, 16 * cfg.threads);
+			startWorkers(0);
+			try {
+				while (next < cnt) {
+					double kth = size == k ? influenceIndex[best[0]] : -1.0;
+					// Fill up the top k first, then batches of candidates that can still enter it
+					int end = next;
+					int limit = size < k ? next + k - size : next + batch;
+					while (end < cnt && end < limit && bound[candidates[end]] >= kth) {
+						end++;
+					}
+					if (end == next) {
+						break;
+					}
+					if (condensed) {
+						condensedWrapper(downstream(candidates, next, end, done));
+						// Every run walks the whole condensation, so the batches grow
+						batch *= 2;
+					}
+					else {
+						forEachSource(candidates, next, end, false);
+					}
+					for (int i = next; i < end; i++) {
+						size = offer(best, size, candidates[i]);
+					}
+					next = end;
+				}
+			}
+			finally {
+				stopWorkers();
+			}
+		}
+
+		// Ranked by descending score
+		int[] top = new int[size];
+		for (int i = size - 1; i >= 0; i--) {
+			top[i] = best[0];
+			best[0] = best[i];
+			siftDown(best, i, 0);
+		}
+		Metrics.count("topk.candidates", cnt);
+		Metrics.count("topk.scored", next);
+		Metrics.time(stage, start);
+		return top;
+	}
+
+	// Negative if u ranks before v: higher score, ties by lower id
+	private int rank(int u, int v) {
+		int c = Double.compare(influenceIndex[v], influenceIndex[u]);
+		return c != 0 ? c : Integer.compare(u, v);
+	}
+
+	// Binary heap of the best nodes so far, the worst one in heap[0];
+	// adds v if there is room or it beats the worst, returns the new size
+	private int offer(int[] heap, int size, int v) {
+		if (size < heap.length) {
+			int i = size;
+			while (i > 0 && rank(heap[(i - 1) / 2], v) < 0) {
+				heap[i] = heap[(i - 1) / 2];
+				i = (i - 1) / 2;
+			}
+			heap[i] = v;
+			return size + 1;
+		}
+		if (size > 0 && rank(v, heap[0]) < 0) {
+			heap[0] = v;
+			siftDown(heap, size, 0);
+		}
+		return size;
+	}
+
+	private void siftDown(int[] heap, int size, int i) {
+		int v = heap[i];
+		while (2 * i + 1 < size) {
+			int c = 2 * i + 1;
+			if (c + 1 < size && rank(heap[c], heap[c + 1]) < 0) {
+				c++;
+			}
+			if (rank(heap[c], v) < 0) {
+				break;
+			}
+			heap[i] = heap[c];
+			i = c;
+		}
+		heap[i] = v;
+	}
+
+	// Nodes reached from sources[from..to-1] and not done yet, marked done. The
+	// done nodes are closed downstream, so both sets consist of whole SCCs
+	private boolean[] downstream(int[] sources, int from, int to, boolean[] done) {
+		int n = snap.getNumNodes();
+		boolean[] reach = new boolean[n];
+		int[] queue = new int[n];
+		int tail = 0;
+		for (int i = from; i < to; i++) {
+			int v = sources[i];
+			if (!done[v]) {
+				done[v] = true;
+				reach[v] = true;
+				queue[tail++] = v;
+			}
+		}
+		for (int head = 0; head < tail; head++) {
+			int u = queue[head];
+			for (int r = offsets.get(u); r < offsets.get(u + 1); r++) {
+				int w = targets.get(r);
+				if (!done[w]) {
+					done[w] = true;
+					reach[w] = true;
+					queue[tail++] = w;
+				}
+			}
+		}
+		return reach;
+	}
+
+	public void evaluateTopK(int[] top) {
+		double error = 0.0;
+		for (int i = 0; i < top.length; i++) {
+			if (pruning) {
+				System.out.println((i + 1) + ".\t" + snap.getName(top[i]) + "\t" + myFormatter.format(influenceIndex[top[i]]) + " (+" + myFormatter.format(errorBound[top[i]]) + ")");
+				error = Math.max(error, errorBound[top[i]]);
+			}
+			else {
+				System.out.println((i + 1) + ".\t" + snap.getName(top[i]) + "\t" + myFormatter.format(influenceIndex[top[i]]));
+			}
+		}
+		if (pruning) {
+			System.out.println("Pruned scores, ranked by lower bound, max error bound:\t" + error);
+		}
+	}
+
+	// Walk bound minus own value. The iterative solutions x of b and w of the walk
+	// counts W = (I-A)^{-1} 1 have residuals r = value + A x - x and s = 1 + A w - w.
+	// With A >= 0, b = x + (I-A)^{-1} r <= x + max|r| W and W <= w + max|s| W,
+	// hence W <= w / (1 - max|s|) and
+	//   II(v) <= b(v) - value(v) <= x(v) - value(v) + max|r| w(v) / (1 - max|s|)
+	// which holds up to floating point rounding. Without convergence, or max|s| >= 1,
+	// every node is a candidate
+	private double[] computeTopKBound() {
+		int n = snap.getNumNodes();
+		SparseSolver solver = new SparseSolver(offsets, targets, weights, cfg.solverTolerance, cfg.solverMaxIterations);
+		double[] b = solver.solve(snap.copyValues());
+		double r = solver.getResidual();
+		boolean converged = solver.hasConverged();
+		double[] ones = new double[n];
+		Arrays.fill(ones, 1.0);
+		double[] walks = solver.solve(ones);
+		double s = solver.getResidual();
+		converged &= solver.hasConverged();
+		if (!converged || !(s < 1.0)) {
+			System.out.println("Walk sum did not converge, no bounds for top-k");
+			Arrays.fill(b, Double.POSITIVE_INFINITY);
+			return b;
+		}
+		double slack = r / (1.0 - s);
+		for (int v = 0; v < n; v++) {
+			b[v] = Math.max(0.0, b[v] - values.get(v)) + slack * walks[v];
+		}
+		return b;
+	}
+
+	// *** Incremental update
+	// This instance holds the changed snapshot, i.e., changes.applyTo() of the
+	// snapshot of previous. Only the nodes upstream of a change are recomputed
+	// (see GraphUpdate.affected()), all others keep the result of previous.
+	// The downstream results the condensation builds on are unchanged, so with the
+	// same settings the result is identical to a full wrapper() run
+	public void update(SnapshotInfluenceIndex previous, GraphUpdate changes) {
+		System.out.println("\n### Incremental Influence Index");
+		long start = System.nanoTime();
+		stage = "update";
+		int n = snap.getNumNodes();
+		boolean[] affected = changes.affected(snap);
+		tagged = Arrays.copyOf(previous.tagged, n);
+		influenceIndex = Arrays.copyOf(previous.influenceIndex, n);
+		errorBound = Arrays.copyOf(previous.errorBound, n);
+		updated = new boolean[n];
+		int cnt = 0;
+		for (int v = 0; v < n; v++) {
+			updated[v] = affected[v] && (!cfg.cumulativeInfluenceIndex || tagged[v]);
+			if (affected[v]) {
+				cnt++;
+			}
+		}
+		System.out.println(changes.getNumRelChanges() + " relationship and " + changes.getNumValueChanges() + " value changes affect " + cnt + " of " + n + " nodes");
+
+		if (pruning) {
+			walkBound = computeWalkBound();
+		}
+		// The condensation needs the downstream results of a condensed run
+		boolean condensed = cfg.condensation && !pruning && previous.condensedRun;
+		if (condensed) {
+			boolean[] exists = new boolean[n];
+			Arrays.fill(exists, true);
+			ParallelScc scc = new ParallelScc(offsets, targets, snap.getInOffsets(), snap.getSources(), exists, Math.max(1, cfg.threads));
+			setComponents(scc.run(), scc.getCount());
+		}
+		compute(condensed, affected);
+		scored = true;
+		Metrics.count("update.affected", cnt);
+		Metrics.time(stage, start);
+	}
+
+	// Compute the Influence Index of sources[from..to-1].
+	// With a worker pool the sources are handed out in chunks to the workers.
+	// Each worker has its own trail state and writes only the entries of its own
+	// source nodes, so the result is identical to the serial run
+	private void forEachSource(final int[] sources, final int from, final int to, final boolean condensed) {
+		if (pool == null || to - from <= 1) {
+			Trail trail = trails.get();
+			for (int i = from; i < to; i++) {
+				computeSource(sources[i], trail, condensed);
+			}
+			return;
+		}
+		final int chunk = Math.max(1, Math.min(64, (to - from) / cfg.threads));
+		final AtomicInteger next = new AtomicInteger(from);
+		try {
+			List<Future<Void>> workers = new ArrayList<Future<Void>>();
+			for (int t = 0; t < cfg.threads; t++) {
+				workers.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						Trail trail = trails.get();
+						int first;
+						while ((first = next.getAndAdd(chunk)) < to) {
+							int last = Math.min(first + chunk, to);
+							for (int i = first; i < last; i++) {
+								computeSource(sources[i], trail, condensed);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> worker : workers) {
+				worker.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Influence Index interrupted", e);
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException("Influence Index failed", e.getCause());
+		}
+	}
+
+	// Influence Index of a single source node
+	private void computeSource(int v, Trail trail, boolean condensed) {
+		// ### Cumulative
+		// Skipped sources are still needed downstream in the condensed version
+		if (targetSets == null && cfg.cumulativeInfluenceIndex && !tagged[v] && !condensed) {
+			return;
+		}
+		// ###
+
+		long start = cfg.metrics ? trail.probe.startSource(stage, v) : 0;
+		if (targetSets != null) {
+			computeTargets(v, trail);
+		}
+		// Assign Influence Index
+		else if (condensed) {
+			Component acc = new Component(component[v]);
+			crawl(v, trail, acc);
+			influenceIndex[v] = acc.ii;
+		}
+		else {
+			Single acc = new Single();
+			crawl(v, trail, acc);
+			influenceIndex[v] = acc.ii;
+			errorBound[v] = acc.pruned;
+		}
+		if (cfg.metrics) {
+			trail.probe.endSource(start);
+		}
+	}
+
+	// *** SCC condensation
+	// Once every strongly connected component (SCC) is collapsed to a single node
+	// the network is a directed acyclic graph (DAG). A simple path leaving an SCC
+	// never comes back to it, so the Influence Index of a node v is
+	//   sum over simple paths p inside the SCC of v, from v to u:
+	//     w(p) * value(u) (for u != v) + sum over edges u->x leaving the SCC: w(p) * w(u,x) * (value(x) + II(x))
+	// Processing the SCCs in reverse topological order (downstream first), II(x) is
+	// always known and paths only need to be enumerated inside non-trivial SCCs.
+	// Nodes of the same SCC are independent of each other and run on the worker pool.
+	// Results agree with the full enumeration up to floating point rounding
+	public void setComponents(int[] component, int numComponents) {
+		this.component = component;
+		this.numComponents = numComponents;
+	}
+
+	private void condensedWrapper(boolean[] restrict) {
+		int n = snap.getNumNodes();
+		int c = numComponents;
+		System.out.println("Influence Index on SCC condensation with " + c + " components");
+
+		// Nodes grouped by component
+		int[] compStart = new int[c + 1];
+		for (int v = 0; v < n; v++) {
+			compStart[component[v] + 1]++;
+		}
+		for (int i = 0; i < c; i++) {
+			compStart[i + 1] += compStart[i];
+		}
+		int[] compNodes = new int[n];
+		int[] fill = Arrays.copyOf(compStart, c);
+		for (int v = 0; v < n; v++) {
+			compNodes[fill[component[v]]++] = v;
+		}
+
+		// Edges between components, grouped by target component, and number of
+		// outgoing edges per component still waiting to be processed
+		int[] pending = new int[c];
+		int[] inStart = new int[c + 1];
+		for (int v = 0; v < n; v++) {
+			for (int r = offsets.get(v); r < offsets.get(v + 1); r++) {
+				int cx = component[targets.get(r)];
+				if (cx != component[v]) {
+					pending[component[v]]++;
+					inStart[cx + 1]++;
+				}
+			}
+		}
+		for (int i = 0; i < c; i++) {
+			inStart[i + 1] += inStart[i];
+		}
+		int[] inSource = new int[inStart[c]];
+		fill = Arrays.copyOf(inStart, c);
+		for (int v = 0; v < n; v++) {
+			for (int r = offsets.get(v); r < offsets.get(v + 1); r++) {
+				int cx = component[targets.get(r)];
+				if (cx != component[v]) {
+					inSource[fill[cx]++] = component[v];
+				}
+			}
+		}
+
+		// Reverse topological order: start with sink components
+		int[] queue = new int[c];
+		int head = 0;
+		int tail = 0;
+		for (int i = 0; i < c; i++) {
+			if (pending[i] == 0) {
+				queue[tail++] = i;
+			}
+		}
+		while (head < tail) {
+			int comp = queue[head++];
+			// Restricted nodes are closed upstream, so a component is in or out as a whole
+			if (restrict == null || (compStart[comp] < compStart[comp + 1] && restrict[compNodes[compStart[comp]]])) {
+				forEachSource(compNodes, compStart[comp], compStart[comp + 1], true);
+			}
+			for (int e = inStart[comp]; e < inStart[comp + 1]; e++) {
+				if (--pending[inSource[e]] == 0) {
+					queue[tail++] = inSource[e];
+				}
+			}
+		}
+	}
+
+	// *** Trail enumeration
+	// Depth first search (DFS) over the simple paths (trails) from source, the
+	// accumulator adds up what is found along them.
+	// Iterative version of InfluenceIndex.crawlDownstream(): the trail is kept on an
+	// explicit stack of (node, relationship cursor, indirect weight) frames, so deep
+	// ownership chains need no thread stack. Nodes are visited in the same order as
+	// in the recursive version, hence the sums are identical
+	private void crawl(int source, Trail trail, Accumulator acc) {
+		boolean[] active = trail.active;
+		int[] node = trail.node;
+		int[] cursor = trail.cursor;
+		double[] weight = trail.weight;
+		long[] live = trail.live;
+		double epsilon = cfg.epsilon;
+		int maxDepth = cfg.maxDepth > 0 ? cfg.maxDepth : Integer.MAX_VALUE;
+
+		// Initialize with the source node as active bottom frame
+		int depth = 0;
+		node[0] = source;
+		cursor[0] = offsets.get(source);
+		weight[0] = 1.0;
+		active[source] = true;
+		// Counts for the run summary
+		long edges = 0;
+		long paths = 0;
+		long depthSum = 0;
+		long cycles = 0;
+		long cutoffs = 0;
+		long dropped = 0;
+		int deepest = 0;
+
+		while (depth >= 0) {
+			int current = node[depth];
+			int rel = cursor[depth];
+
+			// No more relationships, deactivate and go back up
+			if (rel == offsets.get(current + 1)) {
+				active[current] = false;
+				depth--;
+				continue;
+			}
+			cursor[depth] = rel + 1;
+			int successor = targets.get(rel);
+			edges++;
+
+			// ### Cumulative
+			// Found other tagged (sink) node or a member of every live set, skip
+			long mask = acc.enter(successor, live != null ? live[depth] : 1L);
+			if (mask == 0) {
+				cutoffs++;
+				continue;
+			}
+			// ###
+
+			// Been here, skip
+			if (active[successor]) {
+				cycles++;
+				continue;
+			}
+
+			// Compute indirect weight
+			double newWeight = weights.get(rel) * weight[depth];
+
+			// Negligible or too deep, drop the whole branch and account for it in the error bound
+			if (pruning && (newWeight < epsilon || depth >= maxDepth)) {
+				acc.prune(successor, newWeight, mask);
+				dropped++;
+				continue;
+			}
+
+			// Compute Influence Index, the trail may end here
+			if (!acc.reach(successor, newWeight, mask)) {
+				continue;
+			}
+
+			// Activate and continue along trail (DFS)
+			active[successor] = true;
+			depth++;
+			node[depth] = successor;
+			cursor[depth] = offsets.get(successor);
+			weight[depth] = newWeight;
+			paths++;
+			depthSum += depth;
+			deepest = Math.max(deepest, depth);
+			if (live != null) {
+				live[depth] = mask;
+			}
+		}
+		trail.count(edges, paths, depthSum, deepest, cycles, cutoffs, dropped);
+	}
+
+	// What crawl() adds up along the trails of one source. live is the bit mask
+	// of the target sets still live on the trail (1 if there are no sets)
+	private abstract class Accumulator {
+		// Live sets once the trail enters successor, 0 ends the branch
+		long enter(int successor, long live) {
+			return cfg.cumulativeInfluenceIndex && tagged[successor] ? 0 : live;
+		}
+
+		// Branch at successor dropped by pruning, weight is the indirect weight up to it
+		abstract void prune(int successor, double weight, long live);
+
+		// Trail reaches successor, false if it ends there
+		abstract boolean reach(int successor, double weight, long live);
+	}
+
+	// Influence Index of the source from the value of all downstream nodes, and the
+	// error bound of the pruned branches
+	private final class Single extends Accumulator {
+		double ii;
+		double pruned;
+
+		void prune(int successor, double weight, long live) {
+			pruned += weight * walkBound[successor];
+		}
+
+		boolean reach(int successor, double weight, long live) {
+			ii = weight * values.get(successor) + ii;
+			return true;
+		}
+	}
+
+	// Simple paths inside the SCC comp of the source only, closed off with the
+	// already computed Influence Index of the nodes they exit to
+	private final class Component extends Accumulator {
+		final int comp;
+		double ii;
+
+		Component(int comp) {
+			this.comp = comp;
+		}
+
+		// Condensed runs do not prune (see wrapper())
+		void prune(int successor, double weight, long live) {
+		}
+
+		boolean reach(int successor, double weight, long live) {
+			// Leaving the SCC: everything downstream is already known
+			if (component[successor] != comp) {
+				ii += weight * (values.get(successor) + influenceIndex[successor]);
+				return false;
+			}
+			// Inside the SCC: continue along trail
+			ii += weight * values.get(successor);
+			return true;
+		}
+	}
+
+	// *** Cumulative Influence Index of many target sets in one sweep
+	// The cumulative Influence Index of a set S only counts trails from a node of S
+	// that do not enter another node of S. A single trail enumeration per source
+	// serves all sets the source belongs to: every frame carries a bit mask of the
+	// source's sets that are still live, i.e., not yet entered. A set drops out
+	// when the trail reaches one of its nodes and the branch ends once no set is
+	// left. Sets of a source are handled 64 at a time.
+	// Per set the totals are summed in node order, so they are identical to
+	// separate tag() / wrapper() / evaluateCumulative() runs without condensation
+	public double[] cumulative(TargetSets sets) {
+		System.out.println("\n### Cumulative Influence Index of " + sets.size() + " target sets");
+		long start = System.nanoTime();
+		stage = "targets";
+		if (pruning) {
+			walkBound = computeWalkBound();
+		}
+		int n = snap.getNumNodes();
+		targetSets = sets;
+		setOffsets = sets.getSetOffsets();
+		setIds = sets.getSetIds();
+		setResult = new double[setIds.length];
+		setError = new double[setIds.length];
+
+		// Only nodes in at least one set are sources
+		int cnt = 0;
+		for (int v = 0; v < n; v++) {
+			if (setOffsets[v + 1] > setOffsets[v]) {
+				cnt++;
+			}
+		}
+		int[] sources = new int[cnt];
+		cnt = 0;
+		for (int v = 0; v < n; v++) {
+			if (setOffsets[v + 1] > setOffsets[v]) {
+				sources[cnt++] = v;
+			}
+		}
+
+		int numSets = sets.size();
+		startWorkers(numSets);
+		try {
+			forEachSource(sources, 0, sources.length, false);
+		}
+		finally {
+			stopWorkers();
+			targetSets = null;
+		}
+
+		// Totals per set
+		double[] total = new double[numSets];
+		targetErrorBound = new double[numSets];
+		for (int i = 0; i < setIds.length; i++) {
+			total[setIds[i]] += setResult[i];
+			targetErrorBound[setIds[i]] += setError[i];
+		}
+		targetInfluenceIndex = total;
+		Metrics.time(stage, start);
+		return total;
+	}
+
+	public void evaluateTargets(TargetSets sets) {
+		double val = 0.0;
+		for (int v = 0; v < snap.getNumNodes(); v++) {
+			val += values.get(v);
+		}
+		int[] size = new int[sets.size()];
+		for (int i = 0; i < setIds.length; i++) {
+			size[setIds[i]]++;
+		}
+		for (int s = 0; s < sets.size(); s++) {
+			double ii = targetInfluenceIndex[s];
+			System.out.print("For the set of " + size[s] + " " + sets.getName(s) + " nodes: " + ii + "\t" + ii/val*100.0 + "%");
+			System.out.println(pruning ? "\terror bound: " + targetErrorBound[s] : "");
+		}
+	}
+
+	// All sets of source v
+	private void computeTargets(int v, Trail trail) {
+		for (int first = setOffsets[v]; first < setOffsets[v + 1]; first += 64) {
+			int last = Math.min(first + 64, setOffsets[v + 1]);
+			for (int i = first; i < last; i++) {
+				trail.localSet[setIds[i]] = i - first;
+			}
+			int numLocal = last - first;
+			Arrays.fill(trail.setII, 0, numLocal, 0.0);
+			Arrays.fill(trail.setPruned, 0, numLocal, 0.0);
+			trail.live[0] = numLocal == 64 ? -1L : (1L << numLocal) - 1;
+			crawl(v, trail, new Targets(trail));
+			for (int i = first; i < last; i++) {
+				trail.localSet[setIds[i]] = -1;
+				// Same as evaluateCumulative(): only positive contributions count
+				setResult[i] = trail.setII[i - first] > 0 ? trail.setII[i - first] : 0.0;
+				setError[i] = trail.setPruned[i - first];
+			}
+		}
+	}
+
+	// Influence Index for every live set of the source, see cumulative()
+	private final class Targets extends Accumulator {
+		final int[] localSet;
+		final double[] setII;
+		final double[] setPruned;
+
+		Targets(Trail trail) {
+			localSet = trail.localSet;
+			setII = trail.setII;
+			setPruned = trail.setPruned;
+		}
+
+		// Sets with successor as a member end here
+		long enter(int successor, long live) {
+			for (int i = setOffsets[successor]; i < setOffsets[successor + 1]; i++) {
+				int local = localSet[setIds[i]];
+				if (local >= 0) {
+					live &= ~(1L << local);
+				}
+			}
+			return live;
+		}
+
+		void prune(int successor, double weight, long live) {
+			add(setPruned, live, weight * walkBound[successor]);
+		}
+
+		boolean reach(int successor, double weight, long live) {
+			add(setII, live, weight * values.get(successor));
+			return true;
+		}
+	}
+
+	private static void add(double[] acc, long mask, double x) {
+		while (mask != 0) {
+			acc[Long.numberOfTrailingZeros(mask)] += x;
+			mask &= mask - 1;
+		}
+	}
+
+	// Upper bound for the pruned branches.
+	// The Influence Index sums indirect weights over simple paths, which are a subset
+	// of all walks. So the value flowing into v along any branch is bounded by the
+	// walk sum b = v + A b, i.e., b = (I-A)^{-1} v.
+	// If the iteration does not converge (spectral radius of A >= 1) there is no
+	// finite bound and it is reported as infinity
+	private double[] computeWalkBound() {
+		SparseSolver solver = new SparseSolver(offsets, targets, weights, cfg.solverTolerance, cfg.solverMaxIterations);
+		double[] b = solver.solve(snap.copyValues());
+		if (!solver.hasConverged()) {
+			System.out.println("Walk sum did not converge after " + solver.getIterations() + " iterations, residual " + solver.getResidual() + ", error bound is infinite");
+			Arrays.fill(b, Double.POSITIVE_INFINITY);
+		}
+		return b;
+	}
+
+	// Per-thread traversal state, reused for all source nodes.
+	// A trail is a simple path, so it holds at most numNodes frames
+	private static final class Trail {
+		final boolean[] active;      // active[v] = v is on the current trail
+		final int[] node;            // node[d] = node at depth d
+		final int[] cursor;          // cursor[d] = next relationship of node[d] to expand
+		final double[] weight;       // weight[d] = indirect weight from source to node[d]
+		final Metrics.Probe probe = new Metrics.Probe();
+
+		// Only for many target sets
+		long[] live;                 // live[d] = bit mask of the sets still live at depth d
+		int[] localSet;              // localSet[s] = bit of set s for the current source, -1 if none
+		double[] setII;              // setII[b] = Influence Index for the set of bit b
+		double[] setPruned;          // setPruned[b] = its error bound
+
+		Trail(int numNodes) {
+			active = new boolean[numNodes];
+			node = new int[numNodes];
+			cursor = new int[numNodes];
+			weight = new double[numNodes];
+		}
+
+		// Add the counts of a crawl to the current source
+		void count(long edges, long paths, long depthSum, int deepest, long cycles, long cutoffs, long dropped) {
+			probe.edges += edges;
+			probe.paths += paths;
+			probe.depthSum += depthSum;
+			probe.maxDepth = Math.max(probe.maxDepth, deepest);
+			probe.cycleCutoffs += cycles;
+			probe.targetCutoffs += cutoffs;
+			probe.prunedBranches += dropped;
+		}
+
+		void withTargets(int numSets) {
+			live = new long[active.length];
+			localSet = new int[numSets];
+			Arrays.fill(localSet, -1);
+			setII = new double[64];
+			setPruned = new double[64];
+		}
+	}
+
+	// Getters
+	public GraphSnapshot getSnapshot() {
+		return snap;
+	}
+
+	public double[] getInfluenceIndex() {
+		return influenceIndex;
+	}
+
+	public double[] getErrorBound() {
+		return errorBound;
+	}
+
+	public double[] getTargetInfluenceIndex() {
+		return targetInfluenceIndex;
+	}
+
+	public double[] getTargetErrorBound() {
+		return targetErrorBound;
+	}
+}
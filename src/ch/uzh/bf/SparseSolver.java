@@ -0,0 +1,112 @@
+package ch.uzh.bf;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+public class SparseSolver {
+
+	/*
+	 * Solves x = b + A x, i.e., (I-A) x = b, for a sparse matrix A in compressed
+	 * sparse row (CSR) layout with Gauss-Seidel iterations.
+	 * Cost per iteration is O(edges), memory is O(edges + nodes).
+	 * A is non-negative (ownership weights). The iteration converges if the spectral
+	 * radius of A is below one, which is the condition for
+	 * (I-A)^{-1} = I + A + A^2 + ... to exist in the first place
+	 */
+	private int numNodes;
+	private IntBuffer offsets;       // offsets[i] = index of first non-zero of row i
+	private IntBuffer columns;       // columns[k] = column of non-zero k
+	private DoubleBuffer entries;    // entries[k] = value of non-zero k
+
+	private double tolerance;
+	private int maxIterations;
+
+	// Report of last solve
+	private int iterations;
+	private double residual;
+	private boolean converged;
+
+	public SparseSolver(IntBuffer offsets, IntBuffer columns, DoubleBuffer entries, double tolerance, int maxIterations) {
+		this.numNodes = offsets.limit() - 1;
+		this.offsets = offsets;
+		this.columns = columns;
+		this.entries = entries;
+		this.tolerance = tolerance;
+		this.maxIterations = maxIterations;
+	}
+
+	// y = A x
+	public double[] multiply(double[] x) {
+		double[] y = new double[numNodes];
+		for (int i = 0; i < numNodes; i++) {
+			double sum = 0.0;
+			for (int k = offsets.get(i); k < offsets.get(i + 1); k++) {
+				sum += entries.get(k) * x[columns.get(k)];
+			}
+			y[i] = sum;
+		}
+		return y;
+	}
+
+	// x = (I-A)^{-1} b
+	public double[] solve(double[] b) {
+		double[] x = b.clone();
+		converged = false;
+		for (iterations = 1; iterations <= maxIterations; iterations++) {
+			double change = 0.0;
+			double norm = 0.0;
+			for (int i = 0; i < numNodes; i++) {
+				// x_i = (b_i + sum_{j != i} a_ij x_j) / (1 - a_ii), using the x_j already updated
+				double sum = b[i];
+				double diag = 1.0;
+				for (int k = offsets.get(i); k < offsets.get(i + 1); k++) {
+					if (columns.get(k) == i) {
+						diag -= entries.get(k);
+					}
+					else {
+						sum += entries.get(k) * x[columns.get(k)];
+					}
+				}
+				// Self-loop of weight >= 1, spectral radius >= 1
+				if (diag <= 0.0) {
+					residual = Double.POSITIVE_INFINITY;
+					return x;
+				}
+				double xi = sum / diag;
+				change = Math.max(change, Math.abs(xi - x[i]));
+				norm = Math.max(norm, Math.abs(xi));
+				x[i] = xi;
+			}
+			if (change <= tolerance * norm) {
+				converged = true;
+				break;
+			}
+		}
+		iterations = Math.min(iterations, maxIterations);
+		residual = residual(x, b);
+		return x;
+	}
+
+	// Max norm of b + A x - x
+	private double residual(double[] x, double[] b) {
+		double[] ax = multiply(x);
+		double r = 0.0;
+		for (int i = 0; i < numNodes; i++) {
+			r = Math.max(r, Math.abs(b[i] + ax[i] - x[i]));
+		}
+		return r;
+	}
+
+	// Getters
+	public int getIterations() {
+		return iterations;
+	}
+
+	public double getResidual() {
+		return residual;
+	}
+
+	public boolean hasConverged() {
+		return converged;
+	}
+}
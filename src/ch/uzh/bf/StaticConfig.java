@@ -23,19 +23,12 @@ public final class StaticConfig {
 	// *** Nodes
 	public static enum NodeLabel implements Label {MYNODE};
 
-	public static enum NodeProps {NAME, VALUE, BOWTIE, II_VAL, NODESWITCH, TAG};
+	public static enum NodeProps {NAME, VALUE, BOWTIE, II_VAL, II_ERR};
 	public static String nodeName = NodeProps.NAME.toString();
 	public static String nodeBT = NodeProps.BOWTIE.toString();
 	public static String nodeValue = NodeProps.VALUE.toString();
 	public static String nodeInfluenceIndex = NodeProps.II_VAL.toString();
-
-	// * Influence Index
-	public static enum NodeSwitch {ON, OFF};
-	public static String nodeSwitch = NodeProps.NODESWITCH.toString();
-
-	// * Node tagginf for cumulative Influence Index
-	public static enum NodeTag {YES, NO};
-	public static String nodeTag = NodeProps.TAG.toString();
+	public static String nodeInfluenceIndexError = NodeProps.II_ERR.toString();
 
 	// *** Bowtie
 	public static enum BowTie {IN, OUT, SCC, TT, OCC};
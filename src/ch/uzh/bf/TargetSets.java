@@ -0,0 +1,197 @@
+package ch.uzh.bf;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class TargetSets {
+
+	/*
+	 * Named sets of target nodes for the cumulative Influence Index, e.g., the
+	 * bowtie components or country and sector groups. Nodes are dense ids of a
+	 * GraphSnapshot and may belong to any number of sets.
+	 * For the traversal the membership is also kept per node, in CSR layout:
+	 * the sets of node v are setIds[setOffsets[v]..setOffsets[v+1]-1], ascending
+	 */
+	private int numNodes;
+	private ArrayList<String> names;
+	private ArrayList<int[]> members;  // members.get(s) = nodes of set s
+
+	private int[] setOffsets;          // built on first use
+	private int[] setIds;
+
+	public TargetSets(int numNodes) {
+		this.numNodes = numNodes;
+		names = new ArrayList<String>();
+		members = new ArrayList<int[]>();
+	}
+
+	// Add a set, returns its index
+	public int add(String name, int[] nodes) {
+		names.add(name);
+		members.add(nodes);
+		setOffsets = null;
+		setIds = null;
+		return names.size() - 1;
+	}
+
+	// *** Factories
+	// One set per bowtie component, from the classes of a SnapshotBowtie
+	public static TargetSets fromBowtie(byte[] classes) {
+		TargetSets sets = new TargetSets(classes.length);
+		for (StaticConfig.BowTie b : StaticConfig.BowTie.values()) {
+			int cnt = 0;
+			for (int v = 0; v < classes.length; v++) {
+				if (classes[v] == b.ordinal()) {
+					cnt++;
+				}
+			}
+			int[] nodes = new int[cnt];
+			cnt = 0;
+			for (int v = 0; v < classes.length; v++) {
+				if (classes[v] == b.ordinal()) {
+					nodes[cnt++] = v;
+				}
+			}
+			sets.add(b.toString(), nodes);
+		}
+		return sets;
+	}
+
+	// Same from the BOWTIE property in Neo4j
+	// Needs an open transaction
+	public static TargetSets fromBowtie(GraphSnapshot snap) {
+		return fromBowtie(snap.readBowtie());
+	}
+
+	// Sets from a delimited text file with one (set, node name) pair per line,
+	// same conventions as EdgeListLoader. Unknown node names are skipped
+	public static TargetSets load(String file, boolean header, GraphSnapshot snap) throws IOException {
+		System.out.println("\n### Loading target sets from " + file);
+		char delimiter = EdgeListLoader.delimiterOf(file);
+		NameDictionary byName = snap.getDictionary();
+		HashMap<String, Integer> bySet = new HashMap<String, Integer>();
+		ArrayList<String> setNames = new ArrayList<String>();
+		ArrayList<int[]> setNodes = new ArrayList<int[]>();
+		int[] sizes = new int[16];
+		long rows = 0;
+		long skipped = 0;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			if (header) {
+				reader.readLine();
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.charAt(0) == '#') {
+					continue;
+				}
+				int cut = line.indexOf(delimiter);
+				if (cut < 0) {
+					throw new IllegalArgumentException("Expected 2 fields: " + line);
+				}
+				rows++;
+				int v = byName.get(line.substring(cut + 1).trim());
+				if (v == NameDictionary.missing) {
+					skipped++;
+					continue;
+				}
+				String name = line.substring(0, cut).trim();
+				Integer s = bySet.get(name);
+				if (s == null) {
+					s = setNames.size();
+					bySet.put(name, s);
+					setNames.add(name);
+					setNodes.add(new int[16]);
+					if (s == sizes.length) {
+						sizes = Arrays.copyOf(sizes, 2 * s);
+					}
+				}
+				int[] nodes = setNodes.get(s);
+				if (sizes[s] == nodes.length) {
+					nodes = Arrays.copyOf(nodes, 2 * nodes.length);
+					setNodes.set(s, nodes);
+				}
+				nodes[sizes[s]++] = v;
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		TargetSets sets = new TargetSets(snap.getNumNodes());
+		for (int s = 0; s < setNames.size(); s++) {
+			sets.add(setNames.get(s), Arrays.copyOf(setNodes.get(s), sizes[s]));
+		}
+		System.out.println("Found " + sets.size() + " sets in " + rows + " rows, skipped " + skipped + " unknown nodes");
+		return sets;
+	}
+
+	// *** Membership per node
+	private void build() {
+		int s = names.size();
+		setOffsets = new int[numNodes + 1];
+		// Nodes listed twice in a set count once
+		int[] last = new int[numNodes];
+		Arrays.fill(last, -1);
+		for (int i = 0; i < s; i++) {
+			for (int v : members.get(i)) {
+				if (last[v] != i) {
+					last[v] = i;
+					setOffsets[v + 1]++;
+				}
+			}
+		}
+		for (int v = 0; v < numNodes; v++) {
+			setOffsets[v + 1] += setOffsets[v];
+		}
+		setIds = new int[setOffsets[numNodes]];
+		int[] fill = Arrays.copyOf(setOffsets, numNodes);
+		Arrays.fill(last, -1);
+		for (int i = 0; i < s; i++) {
+			for (int v : members.get(i)) {
+				if (last[v] != i) {
+					last[v] = i;
+					setIds[fill[v]++] = i;
+				}
+			}
+		}
+	}
+
+	// Getters
+	public int size() {
+		return names.size();
+	}
+
+	public int getNumNodes() {
+		return numNodes;
+	}
+
+	public String getName(int s) {
+		return names.get(s);
+	}
+
+	public int[] getMembers(int s) {
+		return members.get(s);
+	}
+
+	public int[] getSetOffsets() {
+		if (setOffsets == null) {
+			build();
+		}
+		return setOffsets;
+	}
+
+	public int[] getSetIds() {
+		if (setIds == null) {
+			build();
+		}
+		return setIds;
+	}
+}